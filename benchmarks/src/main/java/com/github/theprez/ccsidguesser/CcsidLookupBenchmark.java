@@ -0,0 +1,39 @@
+package com.github.theprez.ccsidguesser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks mapping charset names to CCSIDs, both through the index and the uncached way the index is built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CcsidLookupBenchmark {
+
+    @Param({ "Cp037", "UTF-8", "windows-1252", "x-IBM930", "IBM-1047" })
+    public String name;
+
+    @Benchmark
+    public int unknownStringToCCSID() {
+        return CcsidUtils.unknownStringToCCSID(name);
+    }
+
+    @Benchmark
+    public int unknownStringToCCSIDUncached() {
+        return CcsidUtils.computeUnknownStringToCCSID(name);
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.ConvertMode;
+
+/**
+ * Benchmarks conversion to UTF-8: the transcoder alone (into a channel that discards everything), and a whole file
+ * conversion as <tt>convertFileToUTF8</tt> does it, temp file and rename included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final WritableByteChannel NOWHERE = new WritableByteChannel() {
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int write(final ByteBuffer _src) {
+            final int ret = _src.remaining();
+            _src.position(_src.limit());
+            return ret;
+        }
+    };
+
+    @Param({ "Cp037", "Cp1252", "SJIS", "x-IBM930" })
+    public String charset;
+
+    @Param({ "1048576" })
+    public int size;
+
+    private byte[] m_data;
+    private File m_dir;
+    private File m_file;
+
+    @Benchmark
+    public File convertFileToUTF8() throws IOException {
+        return Transcoder.convertFile(m_file, ConvertMode.DOTUTF8, charset);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        m_data = CorpusText.synthesizeBytes(charset, size, 1);
+        m_dir = Files.createTempDirectory("ccsidguesser-bench").toFile();
+        m_file = new File(m_dir, "sample.txt");
+        Files.write(m_file.toPath(), m_data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(new File(m_dir, "sample.txt.utf8").toPath());
+        Files.deleteIfExists(m_file.toPath());
+        Files.deleteIfExists(m_dir.toPath());
+    }
+
+    @Benchmark
+    public void transcode() throws IOException {
+        new Transcoder(charset).transcode(Channels.newChannel(new ByteArrayInputStream(m_data)), NOWHERE);
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.Options;
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * Runs the whole detection pipeline over a synthesized corpus (text in each of the preferred code pages, at several
+ * sizes) and reports throughput, allocation, and accuracy. Everything is generated locally, so it runs offline.
+ * <p>
+ * Usage: <tt>CorpusHarness [passes]</tt>. The first pass is a warm-up and isn't counted.
+ */
+public class CorpusHarness {
+
+    private static final int[] SIZES = { 1024, 16 * 1024, 256 * 1024 };
+    private static final long SEED = 0x5eed;
+
+    private static class CorpusFile {
+        final String charset;
+        final File file;
+        final String text;
+
+        CorpusFile(final String _charset, final File _file, final String _text) {
+            charset = _charset;
+            file = _file;
+            text = _text;
+        }
+    }
+
+    private static class Result {
+        long allocated = 0;
+        int equivalent = 0;
+        int files = 0;
+        long nanos = 0;
+        long bytes = 0;
+        int strict = 0;
+        final List<String> misses = new ArrayList<String>();
+    }
+
+    public static void main(final String[] _args) throws Exception {
+        final int passes = 0 < _args.length ? Integer.parseInt(_args[0]) : 3;
+        final AppLogger logger = AppLogger.getSingleton(false);
+        final Options options = new Options();
+        final PrintStream nowhere = new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int _b) {
+            }
+        });
+        final File dir = Files.createTempDirectory("ccsidguesser-corpus").toFile();
+        try {
+            System.out.println(String.format("%9s %6s %10s %9s %14s %8s %8s", "size", "files", "files/sec", "MB/sec", "alloc/file", "top-1", "equiv"));
+            for (final int size : SIZES) {
+                final List<CorpusFile> corpus = writeCorpus(dir, size);
+                processCorpus(logger, options, corpus, nowhere); // warm-up
+                Result total = null;
+                for (int pass = 0; pass < passes; ++pass) {
+                    total = merge(total, processCorpus(logger, options, corpus, nowhere));
+                }
+                final double seconds = total.nanos / 1e9;
+                System.out.println(String.format("%9d %6d %10.1f %9.2f %14s %7.1f%% %7.1f%%", size, corpus.size(), total.files / seconds, total.bytes / seconds / (1024 * 1024), 0 > total.allocated ? "n/a" : total.allocated / total.files + " B",
+                        100.0 * total.strict / total.files, 100.0 * total.equivalent / total.files));
+                for (final String miss : total.misses) {
+                    System.out.println("          miss: " + miss);
+                }
+                for (final CorpusFile f : corpus) {
+                    f.file.delete();
+                }
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated, or -1 if the JVM can't say.
+     */
+    private static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static Result merge(final Result _total, final Result _pass) {
+        if (null == _total) {
+            return _pass;
+        }
+        _total.allocated = 0 > _total.allocated || 0 > _pass.allocated ? -1 : _total.allocated + _pass.allocated;
+        _total.bytes += _pass.bytes;
+        _total.equivalent += _pass.equivalent;
+        _total.files += _pass.files;
+        _total.nanos += _pass.nanos;
+        _total.strict += _pass.strict;
+        return _total;
+    }
+
+    private static Result processCorpus(final AppLogger _logger, final Options _options, final List<CorpusFile> _corpus, final PrintStream _out) throws IOException, InterruptedException {
+        final Result ret = new Result();
+        final int[] guesses = new int[_corpus.size()];
+        final long startAlloc = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < guesses.length; ++i) {
+            guesses[i] = CcsidGuesser.processFile(_logger, _options, _corpus.get(i).file, null, _out);
+        }
+        ret.nanos = System.nanoTime() - start;
+        final long endAlloc = getAllocatedBytes();
+        ret.allocated = 0 > startAlloc ? -1 : endAlloc - startAlloc;
+
+        // Scoring happens after the clock has stopped
+        for (int i = 0; i < guesses.length; ++i) {
+            final CorpusFile f = _corpus.get(i);
+            ret.files++;
+            ret.bytes += f.file.length();
+            if (guesses[i] == CcsidUtils.unknownStringToCCSID(f.charset)) {
+                ret.strict++;
+                ret.equivalent++;
+                continue;
+            }
+            // A different code page that decodes the text identically is right for all practical purposes
+            final String guessed = CcsidUtils.ccsidToEncoding(guesses[i], true);
+            if (null != guessed && Charset.isSupported(guessed) && f.text.equals(new String(Files.readAllBytes(f.file.toPath()), guessed))) {
+                ret.equivalent++;
+            } else {
+                ret.misses.add(f.charset + " -> " + guesses[i] + " (" + guessed + ")");
+            }
+        }
+        return ret;
+    }
+
+    private static List<CorpusFile> writeCorpus(final File _dir, final int _size) throws IOException {
+        final List<CorpusFile> ret = new ArrayList<CorpusFile>();
+        // "UTF8" and "UTF-8" are the same charset; one file will do
+        final LinkedHashSet<String> charsets = new LinkedHashSet<String>();
+        for (final String name : CcsidGuesser.PREFERRED_CCSIDS) {
+            if (Charset.isSupported(name)) {
+                charsets.add(Charset.forName(name).name());
+            }
+        }
+        for (final String charset : charsets) {
+            final String text = CorpusText.synthesize(charset, _size, SEED);
+            final File file = new File(_dir, charset + "-" + _size + ".txt");
+            Files.write(file.toPath(), text.getBytes(charset));
+            ret.add(new CorpusFile(charset, file, text));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Synthesizes text in a given charset: words made up of ASCII letters mixed with the letters the charset has beyond
+ * ASCII. When the charset covers a non-Latin script (Greek, Cyrillic, Hebrew, and so on), words are mostly in that
+ * script; otherwise they're mostly ASCII with the odd accented letter, which is how real Western text looks. The same
+ * charset, size, and seed always give the same text.
+ */
+final class CorpusText {
+
+    /** A charset needs at least this many letters in a script for text to be written in it */
+    private static final int MIN_SCRIPT_LETTERS = 20;
+
+    /**
+     * Synthesizes text whose encoded form is about <tt>_size</tt> bytes.
+     */
+    static String synthesize(final String _charset, final int _size, final long _seed) {
+        final Charset cs = Charset.forName(_charset);
+        final char[] native_ = getNativeLetters(cs);
+        final boolean nativeScript = isNonLatin(native_);
+        final double nativeRatio = nativeScript ? 0.9 : 0.08;
+        final Random random = new Random(_seed);
+        final CharsetEncoder encoder = cs.newEncoder();
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder word = new StringBuilder();
+        int bytes = 0;
+        int lineLen = 0;
+        while (bytes < _size) {
+            word.setLength(0);
+            final int wordLen = 2 + random.nextInt(8);
+            for (int i = 0; i < wordLen; ++i) {
+                if (0 < native_.length && random.nextDouble() < nativeRatio) {
+                    word.append(native_[random.nextInt(native_.length)]);
+                } else {
+                    word.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            if (0 == random.nextInt(12)) {
+                word.append(0 == random.nextInt(2) ? '.' : ',');
+            }
+            if (70 < lineLen + word.length()) {
+                word.append('\n');
+                lineLen = 0;
+            } else {
+                word.append(' ');
+                lineLen += word.length();
+            }
+            try {
+                bytes += encoder.encode(CharBuffer.wrap(word)).remaining();
+            } catch (final CharacterCodingException e) {
+                throw new IllegalStateException(e);
+            }
+            text.append(word);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Synthesizes about <tt>_size</tt> bytes of text and encodes it.
+     */
+    static byte[] synthesizeBytes(final String _charset, final int _size, final long _seed) {
+        return synthesize(_charset, _size, _seed).getBytes(Charset.forName(_charset));
+    }
+
+    /**
+     * Finds the letters past ASCII that the charset can encode. For Unicode charsets, that's everything, so the Latin-1
+     * letters stand in for them.
+     */
+    private static char[] getNativeLetters(final Charset _cs) {
+        final boolean unicode = _cs.name().startsWith("UTF");
+        final CharsetEncoder encoder = _cs.newEncoder();
+        final EnumMap<Character.UnicodeScript, List<Character>> byScript = new EnumMap<Character.UnicodeScript, List<Character>>(Character.UnicodeScript.class);
+        final char last = unicode ? '\u00ff' : '\u9fff';
+        for (char c = '\u00a0'; c <= last; ++c) {
+            if (!Character.isLetter(c) || !encoder.canEncode(c)) {
+                continue;
+            }
+            final Character.UnicodeScript script = Character.UnicodeScript.of(c);
+            List<Character> letters = byScript.get(script);
+            if (null == letters) {
+                letters = new ArrayList<Character>();
+                byScript.put(script, letters);
+            }
+            letters.add(c);
+        }
+        // Write in the biggest non-Latin script there's enough of, or else in Latin
+        List<Character> best = byScript.get(Character.UnicodeScript.LATIN);
+        for (final Entry<Character.UnicodeScript, List<Character>> entry : byScript.entrySet()) {
+            final List<Character> letters = entry.getValue();
+            if (Character.UnicodeScript.LATIN != entry.getKey() && MIN_SCRIPT_LETTERS <= letters.size() && (null == best || isLatin(best) || best.size() < letters.size())) {
+                best = letters;
+            }
+        }
+        if (null == best) {
+            return new char[0];
+        }
+        final char[] ret = new char[best.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = best.get(i);
+        }
+        return ret;
+    }
+
+    private static boolean isLatin(final List<Character> _letters) {
+        return !_letters.isEmpty() && Character.UnicodeScript.LATIN == Character.UnicodeScript.of(_letters.get(0));
+    }
+
+    private static boolean isNonLatin(final char[] _letters) {
+        return 0 < _letters.length && Character.UnicodeScript.LATIN != Character.UnicodeScript.of(_letters[0]);
+    }
+
+    private CorpusText() {
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.theprez.ccsidguesser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks scoring a sample against a single charset (the work done by <tt>getConfidence</tt> for each candidate),
+ * and the per-character weight lookup underneath it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringBenchmark {
+
+    @Param({ "Cp037", "Cp1252", "ISO8859_5", "UTF8" })
+    public String charset;
+
+    @Param({ "4096", "131072" })
+    public int size;
+
+    private byte[] m_data;
+    private CcsidConfidenceScorer m_scorer;
+    private char[] m_text;
+
+    @Setup
+    public void setup() {
+        m_data = CorpusText.synthesizeBytes(charset, size, 1);
+        m_text = CorpusText.synthesize(charset, size, 1).toCharArray();
+        m_scorer = new CcsidConfidenceScorer();
+    }
+
+    @Benchmark
+    public double doesCharacterSeemValid() {
+        final CcsidConfidenceScorer scorer = m_scorer;
+        double total = 0;
+        for (final char c : m_text) {
+            total += scorer.doesCharacterSeemValid(c);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public CcsidConfidenceScorer getConfidence() {
+        final CcsidConfidenceScorer scorer = new CcsidConfidenceScorer();
+        scorer.addCharset(m_data, charset, 1.0);
+        return scorer;
+    }
+}
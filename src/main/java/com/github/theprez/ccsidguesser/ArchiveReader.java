@@ -0,0 +1,292 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a sample from each member of an archive, straight from the archive, without extracting anything.
+ * <ul>
+ * <li>ZIP (and JAR) archives are read through their central directory, so each member is inflated only as far as its
+ * sample, and members are never read past that.</li>
+ * <li>tar archives are read from start to end; the rest of each member is skipped over.</li>
+ * <li>gzip data is inflated as a stream. If it holds a tar archive, that's read as above (though everything has to be
+ * inflated to get from one member to the next); otherwise it's treated as an archive of one member, named after the
+ * file without its <tt>.gz</tt>.</li>
+ * </ul>
+ * Only regular files are sampled; directories, links, and the like are passed over.
+ */
+final class ArchiveReader {
+
+    /** The kinds of archive that can be read */
+    enum Format {
+        GZIP, TAR, ZIP
+    }
+
+    /**
+     * Receives the sample of each member, in the order they appear in the archive.
+     */
+    interface MemberVisitor {
+        void visit(String _name, Sample _sample) throws IOException;
+    }
+
+    private static final int TAR_BLOCK = 512;
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final byte[] TAR_MAGIC = "ustar".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Decides what kind of archive the data (the start of a file) is, if any.
+     *
+     * @return the format, or <tt>null</tt> if the data isn't an archive that can be read
+     */
+    static Format detect(final byte[] _data, final int _len) {
+        if (4 <= _len && 'P' == _data[0] && 'K' == _data[1] && ((3 == _data[2] && 4 == _data[3]) || (5 == _data[2] && 6 == _data[3]))) {
+            return Format.ZIP;
+        }
+        if (2 <= _len && (byte) 0x1f == _data[0] && (byte) 0x8b == _data[1]) {
+            return Format.GZIP;
+        }
+        if (isTarHeader(_data, _len)) {
+            return Format.TAR;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a sample of up to <tt>_sampleSize</tt> bytes from the start of every member of the archive.
+     */
+    static void read(final File _file, final Format _format, final int _sampleSize, final MemberVisitor _visitor) throws IOException {
+        switch (_format) {
+            case ZIP:
+                readZip(_file, _sampleSize, _visitor);
+                break;
+            case TAR:
+                try (InputStream in = new BufferedInputStream(new FileInputStream(_file))) {
+                    readTar(in, _sampleSize, _visitor);
+                }
+                break;
+            case GZIP:
+                try (InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(_file)), 2 * TAR_BLOCK)) {
+                    in.mark(TAR_BLOCK);
+                    final byte[] head = new byte[TAR_BLOCK];
+                    final int len = readFully(in, head, head.length);
+                    in.reset();
+                    if (isTarHeader(head, len)) {
+                        readTar(in, _sampleSize, _visitor);
+                    } else {
+                        _visitor.visit(_file.getName().replaceFirst("(?i)\\.(gz|gzip)$", "").replaceFirst("(?i)\\.tgz$", ".tar"), readSample(in, _sampleSize));
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unsupported archive format: " + _format);
+        }
+    }
+
+    private static boolean isTarHeader(final byte[] _data, final int _len) {
+        return TAR_MAGIC_OFFSET + TAR_MAGIC.length <= _len && Arrays.equals(TAR_MAGIC, Arrays.copyOfRange(_data, TAR_MAGIC_OFFSET, TAR_MAGIC_OFFSET + TAR_MAGIC.length));
+    }
+
+    /**
+     * Reads a sample from the start of a stream. The stream is read one byte past the sample, to tell whether there's
+     * any more of it, and no further.
+     */
+    private static Sample readSample(final InputStream _in, final int _sampleSize) throws IOException {
+        final byte[] buf = new byte[_sampleSize];
+        final int len = readFully(_in, buf, buf.length);
+        final boolean truncated = len == buf.length && -1 != _in.read();
+        return new Sample(len == buf.length ? buf : Arrays.copyOf(buf, len), truncated);
+    }
+
+    /**
+     * Reads until the buffer has <tt>_len</tt> bytes in it, or the stream ends.
+     *
+     * @return how many bytes were read
+     */
+    private static int readFully(final InputStream _in, final byte[] _buf, final int _len) throws IOException {
+        int total = 0;
+        int read;
+        while (total < _len && -1 != (read = _in.read(_buf, total, _len - total))) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static void readZip(final File _file, final int _sampleSize, final MemberVisitor _visitor) throws IOException {
+        try (ZipFile zip = new ZipFile(_file)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final Sample sample;
+                // closing the member's stream stops it being inflated any further
+                try (InputStream in = zip.getInputStream(entry)) {
+                    sample = readSample(in, _sampleSize);
+                }
+                _visitor.visit(entry.getName(), sample);
+            }
+        }
+    }
+
+    /**
+     * Reads a tar archive: a 512-byte header for each member, then its data, padded out to a multiple of 512 bytes.
+     * Names longer than the header has room for come from a GNU long name entry or a POSIX extended header just before.
+     */
+    private static void readTar(final InputStream _in, final int _sampleSize, final MemberVisitor _visitor) throws IOException {
+        final byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            final int len = readFully(_in, header, TAR_BLOCK);
+            if (0 == len || isZero(header)) {
+                // the end of the archive is marked by blocks of zeros (which some writers leave off)
+                return;
+            }
+            if (TAR_BLOCK != len) {
+                throw new EOFException("Truncated tar archive");
+            }
+            if (!hasValidTarChecksum(header)) {
+                throw new IOException("Corrupt tar header");
+            }
+            final long size = parseTarNumber(header, 124, 12);
+            final long padding = (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+            final byte type = header[156];
+            if ('L' == type || 'x' == type) {
+                final byte[] data = new byte[(int) Math.min(size, 1024 * 1024)];
+                if (data.length != readFully(_in, data, data.length)) {
+                    throw new EOFException("Truncated tar archive");
+                }
+                skipFully(_in, size - data.length + padding);
+                longName = 'L' == type ? getTarString(data, 0, data.length) : getPaxPath(data, longName);
+                continue;
+            }
+            if ('0' != type && 0 != type && '7' != type) {
+                // not a regular file
+                skipFully(_in, size + padding);
+                longName = null;
+                continue;
+            }
+            String name = longName;
+            if (null == name) {
+                name = getTarString(header, 0, 100);
+                final String prefix = getTarString(header, 345, 155);
+                if (!prefix.isEmpty()) {
+                    name = prefix + "/" + name;
+                }
+            }
+            longName = null;
+            final byte[] buf = new byte[(int) Math.min(size, _sampleSize)];
+            if (buf.length != readFully(_in, buf, buf.length)) {
+                throw new EOFException("Truncated tar archive");
+            }
+            skipFully(_in, size - buf.length + padding);
+            _visitor.visit(name, new Sample(buf, size > buf.length));
+        }
+    }
+
+    /**
+     * @return the <tt>path</tt> record of a POSIX extended header, or <tt>_default</tt> if there isn't one
+     */
+    private static String getPaxPath(final byte[] _data, final String _default) {
+        // each record is "<length> <key>=<value>\n", with the length counting the whole record
+        int pos = 0;
+        while (pos < _data.length) {
+            int space = pos;
+            while (space < _data.length && ' ' != _data[space]) {
+                space++;
+            }
+            final int recordLen;
+            try {
+                recordLen = Integer.parseInt(new String(_data, pos, space - pos, StandardCharsets.US_ASCII));
+            } catch (final NumberFormatException e) {
+                break;
+            }
+            if (0 >= recordLen || pos + recordLen > _data.length) {
+                break;
+            }
+            final String record = new String(_data, space + 1, pos + recordLen - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            pos += recordLen;
+        }
+        return _default;
+    }
+
+    private static String getTarString(final byte[] _data, final int _offset, final int _len) {
+        int end = _offset;
+        while (end < _offset + _len && 0 != _data[end]) {
+            end++;
+        }
+        return new String(_data, _offset, end - _offset, StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasValidTarChecksum(final byte[] _header) {
+        // the sum of the header's bytes, with the checksum field itself counted as spaces
+        long sum = 0;
+        for (int i = 0; i < TAR_BLOCK; ++i) {
+            sum += 148 <= i && 156 > i ? ' ' : _header[i] & 0xff;
+        }
+        return sum == parseTarNumber(_header, 148, 8);
+    }
+
+    private static boolean isZero(final byte[] _data) {
+        for (final byte b : _data) {
+            if (0 != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a numeric header field: octal digits, or (for values too big for them) big-endian binary flagged by the
+     * high bit of the first byte.
+     */
+    private static long parseTarNumber(final byte[] _data, final int _offset, final int _len) {
+        long ret = 0;
+        if (0 != (_data[_offset] & 0x80)) {
+            for (int i = _offset + 1; i < _offset + _len; ++i) {
+                ret = (ret << 8) | (_data[i] & 0xff);
+            }
+            return ret;
+        }
+        for (int i = _offset; i < _offset + _len; ++i) {
+            final byte b = _data[i];
+            if ('0' <= b && '7' >= b) {
+                ret = (ret << 3) | (b - '0');
+            } else if (' ' != b || 0 != ret) {
+                // leading spaces are padding; anything else ends the number
+                break;
+            }
+        }
+        return ret;
+    }
+
+    private static void skipFully(final InputStream _in, final long _len) throws IOException {
+        long remaining = _len;
+        while (0 < remaining) {
+            final long skipped = _in.skip(remaining);
+            if (0 < skipped) {
+                remaining -= skipped;
+            } else if (-1 == _in.read()) {
+                throw new EOFException("Truncated tar archive");
+            } else {
+                remaining--;
+            }
+        }
+    }
+
+    private ArchiveReader() {
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.Options;
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * Runs the single-file pipeline over many files (explicit names, directory trees, globs, and/or a file list) using a
+ * bounded pool of workers. Each file's output is rendered into its own buffer and written out as one unit, so results
+ * from different files never interleave.
+ */
+class BatchScanner {
+
+    private static final String GLOB_CHARS = "*?[{";
+
+    /**
+     * Whether the given argument should be treated as a glob pattern rather than a file name.
+     */
+    static boolean isGlob(final String _arg) {
+        for (final char c : GLOB_CHARS.toCharArray()) {
+            if (-1 != _arg.indexOf(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final AtomicInteger m_binaryFiles = new AtomicInteger();
+    private final String m_displayBase;
+    private final AppLogger m_logger;
+    private final Options m_options;
+    private final PrintStream m_out;
+
+    BatchScanner(final AppLogger _logger, final Options _options) {
+        this(_logger, _options, System.out, null);
+    }
+
+    /**
+     * @param _out
+     *            where results are printed
+     * @param _displayBase
+     *            a prefix to strip from file names when printing them (the directory relative names were resolved
+     *            against), or <tt>null</tt>
+     */
+    BatchScanner(final AppLogger _logger, final Options _options, final PrintStream _out, final String _displayBase) {
+        m_logger = _logger;
+        m_options = _options;
+        m_out = _out;
+        m_displayBase = _displayBase;
+    }
+
+    /**
+     * @return how many of the files processed so far were classified as binary
+     */
+    int getBinaryFileCount() {
+        return m_binaryFiles.get();
+    }
+
+    /**
+     * Processes everything named by the given arguments and (optionally) file list.
+     *
+     * @param _fileArgs
+     *            files, directories, and/or glob patterns
+     * @param _fileListStr
+     *            a file containing one file name per line, <tt>-</tt> for standard input, or <tt>null</tt>
+     */
+    void run(final List<String> _fileArgs, final String _fileListStr) throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(m_options.jobs);
+        // Bound the amount of queued (and, in ordered mode, buffered) work so huge trees don't pile up in memory
+        final int maxInFlight = 4 * m_options.jobs;
+        final Semaphore permits = new Semaphore(maxInFlight);
+        final LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+        final FileConsumer consumer = new FileConsumer() {
+            @Override
+            public void accept(final File _file) throws InterruptedException {
+                if (m_options.ordered) {
+                    if (pending.size() >= maxInFlight) {
+                        printFuture(pending.removeFirst());
+                    }
+                    pending.add(pool.submit(() -> processOne(_file)));
+                    return;
+                }
+                permits.acquire();
+                pool.submit(() -> {
+                    try {
+                        final String output = processOne(_file);
+                        synchronized (m_out) {
+                            m_out.print(output);
+                            m_out.flush();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        };
+        try {
+            for (final String arg : _fileArgs) {
+                expand(arg, consumer);
+            }
+            if (null != _fileListStr) {
+                readFileList(_fileListStr, consumer);
+            }
+            while (!pending.isEmpty()) {
+                printFuture(pending.removeFirst());
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    private interface FileConsumer {
+        void accept(File _file) throws InterruptedException;
+    }
+
+    private void expand(final String _arg, final FileConsumer _consumer) throws IOException, InterruptedException {
+        if (isGlob(_arg)) {
+            expandGlob(_arg, _consumer);
+            return;
+        }
+        final File file = new File(_arg);
+        if (file.isDirectory()) {
+            walk(file.toPath(), null, _consumer);
+        } else {
+            _consumer.accept(file);
+        }
+    }
+
+    private void expandGlob(final String _pattern, final FileConsumer _consumer) throws IOException, InterruptedException {
+        // Walk from the deepest directory that has no wildcard in it, matching full paths against the pattern
+        final String normalized = _pattern.replace(File.separatorChar, '/');
+        int firstGlobChar = normalized.length();
+        for (final char c : GLOB_CHARS.toCharArray()) {
+            final int idx = normalized.indexOf(c);
+            if (-1 != idx) {
+                firstGlobChar = Math.min(firstGlobChar, idx);
+            }
+        }
+        final int lastSlash = normalized.lastIndexOf('/', firstGlobChar);
+        final Path base = -1 == lastSlash ? Paths.get(".") : Paths.get(0 == lastSlash ? "/" : normalized.substring(0, lastSlash));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + (-1 == lastSlash ? "./" + normalized : normalized));
+        if (!Files.isDirectory(base)) {
+            m_logger.println_err("ERROR: no such directory: " + base);
+            return;
+        }
+        walk(base, matcher, _consumer);
+    }
+
+    private void printFuture(final Future<String> _future) throws InterruptedException {
+        try {
+            m_out.print(_future.get());
+            m_out.flush();
+        } catch (final java.util.concurrent.ExecutionException e) {
+            // processOne() handles its own errors, so this shouldn't happen
+            m_logger.printExceptionStack_verbose(e);
+        }
+    }
+
+    /**
+     * Runs the pipeline on one file.
+     *
+     * @return what was printed for it
+     */
+    String processOne(final File _file) {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(buf, true);
+        try {
+            final String path = _file.getPath();
+            final String displayName = null != m_displayBase && path.startsWith(m_displayBase) ? path.substring(m_displayBase.length()) : path;
+            if (BinaryClassifier.CCSID_BINARY == CcsidGuesser.processFile(m_logger, m_options, _file, displayName, out)) {
+                m_binaryFiles.incrementAndGet();
+            }
+        } catch (final Exception e) {
+            m_logger.printExceptionStack_verbose(e);
+            m_logger.println_err(_file.getPath() + ": " + e.getLocalizedMessage());
+        }
+        out.flush();
+        return buf.toString();
+    }
+
+    private void readFileList(final String _fileListStr, final FileConsumer _consumer) throws IOException, InterruptedException {
+        final InputStream in = "-".equals(_fileListStr) ? System.in : new FileInputStream(_fileListStr);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"))) {
+            String line;
+            while (null != (line = br.readLine())) {
+                if (0 < line.trim().length()) {
+                    expand(line.trim(), _consumer);
+                }
+            }
+        }
+    }
+
+    private void walk(final Path _root, final PathMatcher _matcher, final FileConsumer _consumer) throws IOException, InterruptedException {
+        try {
+            Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path _file, final BasicFileAttributes _attrs) throws IOException {
+                    if (!_attrs.isRegularFile() || (null != _matcher && !_matcher.matches(_file))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (Transcoder.isOutputFile(_file, m_options.convertMode)) {
+                        // written by a conversion earlier in this run (or an earlier run); converting it again would
+                        // turn a .bak into a .bak.bak, and so on
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        _consumer.accept(_file.toFile());
+                    } catch (final InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path _file, final IOException _exc) {
+                    m_logger.println_err("ERROR: unable to read " + _file + ": " + _exc.getLocalizedMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.github.theprez.ccsidguesser.Stats.Phase;
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * The common part of the tag stores: writes are queued, and a single writer thread applies them in batches (one batch
+ * per CCSID, of up to {@link #MAX_BATCH} files), so the threads doing detection never wait on them. The writer lets
+ * writes gather for a moment before starting a batch, unless someone is waiting for them.
+ */
+abstract class BatchingTagStore implements CcsidTagStore {
+
+    /** The most files written in one batch */
+    static final int MAX_BATCH = 256;
+    /** How long the writer waits for more writes to join a batch */
+    private static final long LINGER_MILLIS = 50;
+
+    private boolean m_closed = false;
+    private IOException m_error = null;
+    private int m_flushers = 0;
+    private int m_inFlight = 0;
+    protected final AppLogger m_logger;
+    /** Queued writes, by canonical file, in the order they were queued */
+    private final LinkedHashMap<File, Integer> m_pending = new LinkedHashMap<File, Integer>();
+    private Thread m_writer = null;
+
+    BatchingTagStore(final AppLogger _logger) {
+        m_logger = _logger;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Thread writer;
+        synchronized (this) {
+            if (m_closed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                m_closed = true;
+                notifyAll();
+                writer = m_writer;
+            }
+        }
+        if (null != writer) {
+            try {
+                writer.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        m_flushers++;
+        notifyAll();
+        try {
+            while (!m_pending.isEmpty() || 0 < m_inFlight) {
+                wait();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing CCSID tags", e);
+        } finally {
+            m_flushers--;
+        }
+        if (null != m_error) {
+            final IOException ret = m_error;
+            m_error = null;
+            throw ret;
+        }
+    }
+
+    @Override
+    public int getCcsid(final File _file) throws IOException {
+        synchronized (this) {
+            final Integer pending = m_pending.get(_file.getAbsoluteFile());
+            if (null != pending) {
+                return pending;
+            }
+        }
+        return readCcsid(_file);
+    }
+
+    /**
+     * Reads a file's tag from wherever the store keeps it.
+     *
+     * @return the tag, or -1 if the file isn't tagged
+     */
+    protected abstract int readCcsid(File _file) throws IOException;
+
+    private void runWriter() {
+        while (true) {
+            final TreeMap<Integer, List<File>> batches = new TreeMap<Integer, List<File>>();
+            synchronized (this) {
+                try {
+                    while (m_pending.isEmpty() && !m_closed) {
+                        wait();
+                    }
+                    final long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+                    long remaining;
+                    while (m_pending.size() < MAX_BATCH && !m_closed && 0 == m_flushers && 0 < (remaining = deadline - System.currentTimeMillis())) {
+                        wait(remaining);
+                    }
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                if (m_pending.isEmpty()) {
+                    return;
+                }
+                for (final Entry<File, Integer> entry : m_pending.entrySet()) {
+                    List<File> files = batches.get(entry.getValue());
+                    if (null == files) {
+                        files = new ArrayList<File>();
+                        batches.put(entry.getValue(), files);
+                    }
+                    files.add(entry.getKey());
+                }
+                m_inFlight = m_pending.size();
+                m_pending.clear();
+            }
+            IOException error = null;
+            for (final Map.Entry<Integer, List<File>> batch : batches.entrySet()) {
+                final List<File> files = batch.getValue();
+                for (int i = 0; i < files.size(); i += MAX_BATCH) {
+                    final Stats.Timer timer = Stats.start(Phase.TAG_UPDATE);
+                    try {
+                        writeCcsids(batch.getKey(), files.subList(i, Math.min(files.size(), i + MAX_BATCH)));
+                    } catch (final IOException e) {
+                        m_logger.printExceptionStack_verbose(e);
+                        if (null == error) {
+                            error = e;
+                        }
+                    }
+                    Stats.stop(timer);
+                }
+            }
+            synchronized (this) {
+                if (null == m_error) {
+                    m_error = error;
+                }
+                m_inFlight = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void setCcsid(final File _file, final int _ccsid) throws IOException {
+        if (m_closed) {
+            throw new IOException("CCSID tag store is closed");
+        }
+        if (null == m_writer) {
+            m_writer = new Thread(this::runWriter, "ccsid-tag-writer");
+            m_writer.setDaemon(true);
+            m_writer.start();
+        }
+        final File file = _file.getAbsoluteFile();
+        // re-queueing moves the file to the end, so it's written with the rest of its (latest) batch
+        m_pending.remove(file);
+        m_pending.put(file, _ccsid);
+        notifyAll();
+    }
+
+    /**
+     * Tags every file in the list with the given CCSID, all at once if possible. Called on the writer thread only.
+     */
+    protected abstract void writeCcsids(int _ccsid, List<File> _files) throws IOException;
+}
@@ -0,0 +1,178 @@
+package com.github.theprez.ccsidguesser;
+
+/**
+ * A quick check for samples that aren't text in any charset (images, archives, object code, and the like), so they
+ * can be reported as binary without being scored at all. The checks are, in order: well-known magic numbers at the
+ * start of the file, the density of control bytes (NUL included), and the byte entropy of the sample. UTF-16 and
+ * UTF-32 text, which is full of zero bytes, is recognized first and never called binary.
+ */
+final class BinaryClassifier {
+
+    /** The CCSID reported for binary data (IBM's "no conversion" CCSID) */
+    static final int CCSID_BINARY = 65535;
+
+    /** Samples with more than this fraction of control bytes are binary */
+    private static final double MAX_CONTROL_DENSITY = 0.05;
+
+    /** Samples with byte entropy above this (in bits per byte) are binary: compressed or encrypted data */
+    private static final double MAX_TEXT_ENTROPY = 7.8;
+
+    /**
+     * A byte sequence that files of some type start with.
+     */
+    private static final class Magic {
+        final int[] m_bytes;
+        final String m_name;
+
+        Magic(final String _name, final int... _bytes) {
+            m_name = _name;
+            m_bytes = _bytes;
+        }
+    }
+
+    // @formatter:off
+    private static final Magic[] MAGIC = {
+            new Magic("ZIP archive", 'P', 'K', 0x03, 0x04),
+            new Magic("ZIP archive", 'P', 'K', 0x05, 0x06),
+            new Magic("gzip data", 0x1f, 0x8b),
+            new Magic("bzip2 data", 'B', 'Z', 'h'),
+            new Magic("xz data", 0xfd, '7', 'z', 'X', 'Z', 0x00),
+            new Magic("7-Zip archive", '7', 'z', 0xbc, 0xaf, 0x27, 0x1c),
+            new Magic("Zstandard data", 0x28, 0xb5, 0x2f, 0xfd),
+            new Magic("PNG image", 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a),
+            new Magic("GIF image", 'G', 'I', 'F', '8'),
+            new Magic("JPEG image", 0xff, 0xd8, 0xff),
+            new Magic("TIFF image", 'I', 'I', '*', 0x00),
+            new Magic("TIFF image", 'M', 'M', 0x00, '*'),
+            new Magic("PDF document", '%', 'P', 'D', 'F', '-'),
+            new Magic("ELF object", 0x7f, 'E', 'L', 'F'),
+            new Magic("Java class file", 0xca, 0xfe, 0xba, 0xbe),
+            new Magic("Mach-O object", 0xfe, 0xed, 0xfa, 0xce),
+            new Magic("Mach-O object", 0xfe, 0xed, 0xfa, 0xcf),
+            new Magic("Mach-O object", 0xce, 0xfa, 0xed, 0xfe),
+            new Magic("Mach-O object", 0xcf, 0xfa, 0xed, 0xfe),
+            new Magic("SQLite database", 'S', 'Q', 'L', 'i', 't', 'e', ' ', 'f', 'o', 'r', 'm', 'a', 't', ' ', '3', 0x00)
+    };
+    // @formatter:on
+
+    /** Samples shorter than this are too small for their entropy to mean much */
+    private static final int MIN_ENTROPY_SAMPLE = 4096;
+
+    /**
+     * Control bytes that are at home in text: tab, line feed, form feed, carriage return, and escape (for ISO-2022),
+     * plus EBCDIC's tab, new line, shift-out, and shift-in.
+     */
+    private static final boolean[] TEXT_CONTROLS = new boolean[0x20];
+    static {
+        for (final int b : new int[] { 0x09, 0x0a, 0x0c, 0x0d, 0x1b, 0x05, 0x15, 0x0e, 0x0f }) {
+            TEXT_CONTROLS[b] = true;
+        }
+    }
+
+    /**
+     * Decides whether the sample is binary data.
+     *
+     * @return what kind of binary data the sample seems to be (for messages), or <tt>null</tt> if it may be text
+     */
+    static String classify(final Sample _sample) {
+        final byte[] data = _sample.getData();
+        final int len = _sample.getLength();
+        if (0 == len || CcsidGuesser.startsWithBom(data)) {
+            return null;
+        }
+        final String magic = getMagic(data, len);
+        if (null != magic) {
+            return magic;
+        }
+        if (UnicodeValidator.MIN_WIDE_SAMPLE <= len && null != UnicodeValidator.detectWide(data, len)) {
+            return null;
+        }
+        final int[] histogram = SingleByteTable.histogram(data, len);
+        int controls = 0;
+        for (int b = 0; b < TEXT_CONTROLS.length; ++b) {
+            if (!TEXT_CONTROLS[b]) {
+                controls += histogram[b];
+            }
+        }
+        final String ret;
+        if (controls > MAX_CONTROL_DENSITY * len) {
+            ret = 0 < histogram[0] ? "NUL and control bytes" : "control bytes";
+        } else if (MIN_ENTROPY_SAMPLE <= len && getEntropy(histogram, len) > MAX_TEXT_ENTROPY) {
+            ret = "high-entropy (compressed or encrypted) data";
+        } else {
+            return null;
+        }
+        // UTF-16 text in a non-Latin script has few zero bytes, but plenty of bytes that look like controls
+        if (isPlausibleUtf16(data, len, true) || isPlausibleUtf16(data, len, false)) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the Shannon entropy of the bytes, in bits per byte
+     */
+    static double getEntropy(final int[] _histogram, final int _len) {
+        double entropy = 0;
+        for (final int count : _histogram) {
+            if (0 != count) {
+                final double p = (double) count / _len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Decides whether the data could be UTF-16 text: properly paired surrogates, and hardly any control characters,
+     * private-use characters, or unassigned code points. Random bytes fail this quickly.
+     */
+    private static boolean isPlausibleUtf16(final byte[] _data, final int _len, final boolean _bigEndian) {
+        final int units = _len / 2;
+        if (UnicodeValidator.MIN_WIDE_SAMPLE / 2 > units) {
+            return false;
+        }
+        final int maxBad = units / 100;
+        int bad = 0;
+        boolean expectLow = false;
+        for (int i = 0; i < units * 2; i += 2) {
+            final char c = _bigEndian ? (char) ((_data[i] & 0xff) << 8 | (_data[i + 1] & 0xff)) : (char) ((_data[i + 1] & 0xff) << 8 | (_data[i] & 0xff));
+            if (expectLow != Character.isLowSurrogate(c)) {
+                // a sample may start with the second half of a pair, but otherwise they must match up
+                if (0 != i || !Character.isLowSurrogate(c)) {
+                    return false;
+                }
+            }
+            expectLow = Character.isHighSurrogate(c);
+            if (expectLow || Character.isLowSurrogate(c)) {
+                continue;
+            }
+            final int type = Character.getType(c);
+            if ((Character.CONTROL == type && '\t' != c && '\n' != c && '\r' != c) || Character.PRIVATE_USE == type || Character.UNASSIGNED == type) {
+                if (++bad > maxBad) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String getMagic(final byte[] _data, final int _len) {
+        outer: for (final Magic magic : MAGIC) {
+            final int[] bytes = magic.m_bytes;
+            if (_len < bytes.length) {
+                continue;
+            }
+            for (int i = 0; i < bytes.length; ++i) {
+                if ((_data[i] & 0xff) != bytes[i]) {
+                    continue outer;
+                }
+            }
+            return magic.m_name;
+        }
+        return null;
+    }
+
+    private BinaryClassifier() {
+    }
+}
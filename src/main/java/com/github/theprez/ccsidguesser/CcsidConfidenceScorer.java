@@ -2,23 +2,36 @@ package com.github.theprez.ccsidguesser;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.theprez.ccsidguesser.Stats.Counter;
+import com.github.theprez.ccsidguesser.Stats.Phase;
 
 public class CcsidConfidenceScorer {
 
     public static class Confidence implements Comparable<Confidence> {
 
         private double m_confidence;
-        private final int m_stringLen;
+        private final long m_stringLen;
 
-        public Confidence(final double numHits, final int _numChars, final int _stringLen) {
-            m_confidence = (numHits) / (_numChars);
+        public Confidence(final double numHits, final long _numChars, final long _stringLen) {
+            // With no characters at all (an empty file) there's no evidence against any charset
+            m_confidence = 0 == _numChars ? 1.0 : (numHits) / (_numChars);
             m_stringLen = _stringLen;
         }
 
@@ -39,7 +52,7 @@ public class CcsidConfidenceScorer {
             return m_confidence;
         }
 
-        public int getLength() {
+        public long getLength() {
             return m_stringLen;
         }
 
@@ -48,83 +61,207 @@ public class CcsidConfidenceScorer {
         }
     }
 
-    private Confidence getConfidence(final byte[] _data, final String _charsetName) {
-        String s;
-        try {
-            final CharsetDecoder decoder = Charset.forName(_charsetName).newDecoder();
-            decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-            final CharBuffer decoded = decoder.decode(ByteBuffer.wrap(_data));
-            s = decoded.toString();
-        } catch (final Exception e) {
-            return new Confidence(0, 4 * _data.length, _data.length);
-        }
+    /** How far into a region (other than the first) a decoder may stumble before it is considered in sync */
+    private static final int RESYNC_BYTES = 4;
 
-        double numHits = 0;
-        int numChars = 0;
-        for (final char c : s.toCharArray()) {
-            numHits += doesCharacterSeemValid(c);
-            numChars++;
-        }
-        return new Confidence(numHits, numChars, s.length());
+    private static Confidence failed(final int _len) {
+        return new Confidence(0, Math.max(1, 4L * _len), _len);
     }
 
-    private double doesCharacterSeemValid(final char _c) {
-        if ('\0' == _c) {
-            return 1.0;
-        }
+    private static Confidence decodeFailed(final int _len) {
+        Stats.add(Counter.DECODE_FAILURES, 1);
+        return failed(_len);
+    }
 
-        if (Character.isAlphabetic(_c)) {
-            return 1.0;
+    private Confidence getConfidence(final Sample _sample, final String _charsetName) {
+        return getConfidence(_sample, _sample.getLength(), _charsetName, false);
+    }
+
+    /**
+     * Scores the first <tt>_len</tt> bytes of the sample.
+     *
+     * @param _partial
+     *            whether the bytes are only a prefix of the sample, in which case a multi-byte sequence cut off at the
+     *            end is not held against the charset
+     */
+    private Confidence getConfidence(final Sample _sample, final int _len, final String _charsetName, final boolean _partial) {
+        final byte[] data = _sample.getData();
+        Stats.add(Counter.CHARSETS_SCORED, 1);
+        // Single-byte charsets can be scored straight from the byte histogram, with no decoding at all
+        final SingleByteTable table = SingleByteTable.forCharset(_charsetName);
+        if (null != table) {
+            return new Confidence(table.getHits(getHistogram(data, _len), m_weights), _len, _len);
+        }
+        // Multi-byte charsets whose byte sequences plainly don't fit the sample aren't worth decoding
+        final MultiByteValidator validator = MultiByteValidator.forCharset(_charsetName);
+        if (null != validator && !validator.isPlausible(_sample, _len)) {
+            Stats.add(Counter.VALIDATOR_REJECTIONS, 1);
+            return failed(_len);
         }
-        if (Character.isWhitespace(_c)) {
-            return 1.0;
+        final CharsetDecoder decoder = DecoderPool.getDecoder(_charsetName);
+        if (null == decoder) {
+            return decodeFailed(_len);
         }
-        if (Character.isDigit(_c)) {
-            return 1.0;
+        // Decode a chunk at a time into a reused buffer and score the chars right where they land
+        final CharBuffer out = DecoderPool.getCharBuffer();
+        final CharacterWeights weights = m_weights;
+        final long[] tally = weights.newTally();
+        int numChars = 0;
+        final boolean stats = Stats.isEnabled();
+        long decodeNanos = 0;
+        try {
+            for (int region = 0; region < _sample.getRegionCount(); ++region) {
+                final int start = _sample.getRegionStart(region);
+                final int end = Math.min(_len, _sample.getRegionEnd(region));
+                if (start >= end) {
+                    break;
+                }
+                // Only the very end of the data is really the end of the input; anywhere else, a sequence cut off by the
+                // end of the region (or prefix) is just a sampling artifact
+                final boolean endOfInput = !_partial && end == data.length && _sample.endsAtEof();
+                if (0 < region) {
+                    decoder.reset();
+                }
+                final ByteBuffer in = ByteBuffer.wrap(data, start, end - start);
+                CoderResult result;
+                while (true) {
+                    final long before = stats ? System.nanoTime() : 0;
+                    result = decoder.decode(in, out, endOfInput);
+                    if (stats) {
+                        decodeNanos += System.nanoTime() - before;
+                    }
+                    if (result.isError()) {
+                        if (0 < region && in.position() - start < RESYNC_BYTES) {
+                            // the region started in the middle of a character; skip the orphaned bytes
+                            in.position(in.position() + result.length());
+                            continue;
+                        }
+                        return decodeFailed(_len);
+                    }
+                    numChars += out.position();
+                    tallyAndClear(out, weights, tally);
+                    if (result.isUnderflow()) {
+                        break;
+                    }
+                }
+                if (endOfInput) {
+                    do {
+                        result = decoder.flush(out);
+                        numChars += out.position();
+                        tallyAndClear(out, weights, tally);
+                    } while (result.isOverflow());
+                }
+            }
+        } catch (final Exception e) {
+            return decodeFailed(_len);
+        } finally {
+            if (stats) {
+                Stats.addTime(Phase.DECODE, decodeNanos);
+            }
         }
+        return new Confidence(weights.getHits(tally), numChars, numChars);
+    }
 
-        final int type = Character.getType(_c);
-        switch (type) {
-            case Character.OTHER_PUNCTUATION:
-            case Character.CONNECTOR_PUNCTUATION:
-            case Character.CURRENCY_SYMBOL:
-            case Character.OTHER_LETTER:
-            case Character.OTHER_NUMBER:
-                // case Character.OTHER_SYMBOL:
-            case Character.FINAL_QUOTE_PUNCTUATION:
-            case Character.DASH_PUNCTUATION:
-            case Character.END_PUNCTUATION:
-            case Character.MATH_SYMBOL:
-            case Character.PARAGRAPH_SEPARATOR:
-            case Character.SPACE_SEPARATOR:
-            case Character.MODIFIER_LETTER:
-            case Character.MODIFIER_SYMBOL:
-                return 1.0;
+    /**
+     * Counts each char decoded into the buffer in the tally for its weight class, then clears the buffer.
+     */
+    private static void tallyAndClear(final CharBuffer _buf, final CharacterWeights _weights, final long[] _tally) {
+        final char[] chars = _buf.array();
+        final int len = _buf.position();
+        for (int i = 0; i < len; ++i) {
+            _tally[_weights.getWeightClass(chars[i])]++;
         }
-        if (type != Character.UNASSIGNED) {
-            return 0.1;
+        _buf.clear();
+    }
+
+    private byte[] m_histogramData = null;
+    private int m_histogramLen = -1;
+    private int[] m_histogram = null;
+
+    /**
+     * Gets the byte histogram of the sample. The sample is the same for every charset, so it's built just once.
+     */
+    private synchronized int[] getHistogram(final byte[] _data, final int _len) {
+        if (m_histogramData != _data || m_histogramLen != _len) {
+            m_histogram = SingleByteTable.histogram(_data, _len);
+            m_histogramData = _data;
+            m_histogramLen = _len;
         }
-        return 0.0;
+        return m_histogram;
+    }
+
+    double doesCharacterSeemValid(final char _c) {
+        return m_weights.getWeight(_c);
+    }
+
+    /**
+     * Sets the character weight profile used for scoring. The default is {@link CharacterWeights#getDefault()}.
+     */
+    public void setCharacterWeights(final CharacterWeights _weights) {
+        m_weights = _weights;
     }
 
-    private final TreeMap<Confidence, LinkedList<String>> m_confidence = new TreeMap<Confidence, LinkedList<String>>();
+    /** Size of the prefix that every candidate is scored on in the first stage of staged scoring */
+    private static final int STAGE_INITIAL_PREFIX = 4 * 1024;
+    /** How much the prefix grows from one stage to the next */
+    private static final int STAGE_GROWTH = 4;
+    /**
+     * Candidates scoring more than this far below the leader on a prefix are dropped. This is a judgment call, not a
+     * guarantee that they couldn't catch up on the rest of the sample.
+     */
+    private static final double STAGE_MARGIN = 0.05;
+
+    private int m_stagedMinSurvivors = 0;
+    private volatile CharacterWeights m_weights = CharacterWeights.getDefault();
+
+    private final AtomicLong m_sequence = new AtomicLong();
+    private ExecutorService m_executor = null;
+
+    /**
+     * Charsets by confidence. Within a confidence level, charsets are keyed by the order in which they were offered
+     * (not the order in which scoring finished), so the ranking doesn't depend on how many threads did the scoring.
+     */
+    private final ConcurrentSkipListMap<Confidence, ConcurrentSkipListMap<Long, String>> m_confidence = new ConcurrentSkipListMap<Confidence, ConcurrentSkipListMap<Long, String>>();
 
     private void addConfidence(final String _charset, final Confidence hitrate) {
-        LinkedList<String> entry = m_confidence.get(hitrate);
+        addConfidence(m_sequence.getAndIncrement(), _charset, hitrate);
+    }
+
+    private void addConfidence(final long _sequence, final String _charset, final Confidence hitrate) {
+        ConcurrentSkipListMap<Long, String> entry = m_confidence.get(hitrate);
         if (null == entry) {
-            entry = new LinkedList<String>();
-            m_confidence.put(hitrate, entry);
+            final ConcurrentSkipListMap<Long, String> newEntry = new ConcurrentSkipListMap<Long, String>();
+            entry = m_confidence.putIfAbsent(hitrate, newEntry);
+            if (null == entry) {
+                entry = newEntry;
+            }
         }
-        for (final String confidenceEntry : entry) {
-            if (confidenceEntry.equalsIgnoreCase(_charset)) {
-                return;
+        entry.put(_sequence, _charset);
+    }
+
+    /**
+     * Flattens one confidence level into a list, in the order the charsets were offered. Duplicate names (ignoring
+     * case) are dropped, keeping the first one offered.
+     */
+    private static LinkedList<String> toList(final ConcurrentSkipListMap<Long, String> _entry) {
+        final LinkedList<String> ret = new LinkedList<String>();
+        outer: for (final String charset : _entry.values()) {
+            for (final String existing : ret) {
+                if (existing.equalsIgnoreCase(charset)) {
+                    continue outer;
+                }
             }
+            ret.add(charset);
         }
-        entry.add(_charset);
+        return ret;
     }
 
     Map<Confidence, LinkedList<String>> getSortedData() {
-        return m_confidence.descendingMap();
+        final TreeMap<Confidence, LinkedList<String>> ret = new TreeMap<Confidence, LinkedList<String>>();
+        for (final Entry<Confidence, ConcurrentSkipListMap<Long, String>> entry : m_confidence.entrySet()) {
+            ret.put(entry.getKey(), toList(entry.getValue()));
+        }
+        return ret.descendingMap();
     }
 
     public String getBestGuess() {
@@ -132,14 +269,167 @@ public class CcsidConfidenceScorer {
     }
 
     public LinkedList<String> getBestGuesses() {
-        final Entry<Confidence, LinkedList<String>> last = m_confidence.lastEntry();
-        return last.getValue();
+        final Entry<Confidence, ConcurrentSkipListMap<Long, String>> last = m_confidence.lastEntry();
+        return toList(last.getValue());
     }
 
     public void addCharset(final byte[] sampleData, final String charset, final double _multiplier) {
-        final Confidence hitrate = getConfidence(sampleData, charset);
+        addCharset(m_sequence.getAndIncrement(), new Sample(sampleData, false), charset, _multiplier);
+    }
+
+    private void addCharset(final long _sequence, final Sample _sample, final String charset, final double _multiplier) {
+        final Confidence hitrate = getConfidence(_sample, charset);
         hitrate.multiply(_multiplier);
-        addConfidence(charset, hitrate);
+        addConfidence(_sequence, charset, hitrate);
+    }
+
+    /**
+     * Scores all of the given charsets against the sample. If staged scoring is enabled, candidates are first scored
+     * on a small prefix of the sample and those far below the leader are dropped; the survivors are re-scored on
+     * progressively larger prefixes, and only the final survivors are scored on (and ranked by) the whole sample.
+     * Dropped candidates do not appear in the ranking at all.
+     * <p>
+     * Staged scoring is a heuristic, not a bound: a candidate dropped for trailing on a prefix might have caught up on
+     * the rest of the sample, so the ranking can differ from that of a full scan.
+     *
+     * @param _sampleData
+     *            the sample
+     * @param _charsets
+     *            the candidate charsets, in order of preference
+     * @param _multiplier
+     *            multiplier applied to every candidate's confidence
+     */
+    public void addCharsets(final byte[] _sampleData, final Collection<String> _charsets, final double _multiplier) {
+        addCharsets(new Sample(_sampleData, false), _charsets, _multiplier);
+    }
+
+    /**
+     * Like {@link #addCharsets(byte[], Collection, double)}, for a sample that may be made of several regions.
+     */
+    public void addCharsets(final Sample _sample, final Collection<String> _charsets, final double _multiplier) {
+        Collection<String> survivors = _charsets;
+        if (0 < m_stagedMinSurvivors) {
+            for (int prefixLen = STAGE_INITIAL_PREFIX; prefixLen < _sample.getLength() && survivors.size() > m_stagedMinSurvivors; prefixLen *= STAGE_GROWTH) {
+                survivors = prune(_sample, prefixLen, survivors);
+            }
+        }
+        // Sequence numbers are handed out up front, in preference order, so that ties rank the same no matter which
+        // thread finishes first
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(survivors.size());
+        for (final String charset : survivors) {
+            final long sequence = m_sequence.getAndIncrement();
+            tasks.add(() -> {
+                addCharset(sequence, _sample, charset, _multiplier);
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Runs the tasks on the executor (if there is one) or on the calling thread, returning once all are done.
+     */
+    private <T> List<T> runAll(final List<Callable<T>> _tasks) {
+        final List<T> ret = new ArrayList<T>(_tasks.size());
+        try {
+            if (null == m_executor) {
+                for (final Callable<T> task : _tasks) {
+                    ret.add(task.call());
+                }
+                return ret;
+            }
+            for (final Future<T> future : m_executor.invokeAll(_tasks)) {
+                ret.add(future.get());
+            }
+            return ret;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<String> prune(final Sample _sample, final int _prefixLen, final Collection<String> _candidates) {
+        final String[] candidates = _candidates.toArray(new String[0]);
+        final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(candidates.length);
+        for (final String candidate : candidates) {
+            tasks.add(() -> getConfidence(_sample, _prefixLen, candidate, true).getConfidence());
+        }
+        final List<Double> results = runAll(tasks);
+        final double[] scores = new double[candidates.length];
+        for (int i = 0; i < candidates.length; ++i) {
+            scores[i] = results.get(i);
+        }
+        final double[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        final double leader = sorted[sorted.length - 1];
+        // Always keep at least the minimum number of survivors, no matter how far behind they are
+        final double cutoff = Math.min(leader - STAGE_MARGIN, sorted[sorted.length - m_stagedMinSurvivors]);
+        // Survivors stay in their original (preference) order so that ties rank the same as in a full scan
+        final List<String> survivors = new LinkedList<String>();
+        for (int i = 0; i < candidates.length; ++i) {
+            if (scores[i] >= cutoff) {
+                survivors.add(candidates[i]);
+            }
+        }
+        return survivors;
+    }
+
+    /**
+     * Enables staged scoring for {@link #addCharsets(byte[], Collection, double)}.
+     *
+     * @param _minSurvivors
+     *            the fewest candidates that may survive any stage (should be at least the number of guesses that will
+     *            be shown). Zero disables staged scoring.
+     */
+    public void setStagedScoring(final int _minSurvivors) {
+        m_stagedMinSurvivors = Math.max(0, _minSurvivors);
+    }
+
+    /**
+     * Sets the executor used to score candidates concurrently in {@link #addCharsets(byte[], Collection, double)}. A
+     * {@link java.util.concurrent.ForkJoinPool} works well here, and may be shared between scorers. With no executor
+     * (the default), candidates are scored on the calling thread.
+     */
+    public void setExecutor(final ExecutorService _executor) {
+        m_executor = _executor;
+    }
+
+    /**
+     * Runs the structural Unicode validators over the sample. If they're decisive (clean ASCII/UTF-8, or clearly
+     * UTF-16/UTF-32), the answer is added as a known charset. Call this before scoring any other candidates, so that
+     * the answer stays on top even if some candidate ties with it; if only the top guess is wanted, there's no need to
+     * score any others.
+     *
+     * @param _len
+     *            the number of valid bytes in the sample
+     * @param _truncated
+     *            whether the sample was cut off before the end of the data
+     * @return the charset found, or <tt>null</tt> if the validators weren't decisive
+     */
+    public String addStructuralGuess(final byte[] _sampleData, final int _len, final boolean _truncated) {
+        return addStructuralGuess(new Sample(Arrays.copyOf(_sampleData, _len), _truncated));
+    }
+
+    /**
+     * Like {@link #addStructuralGuess(byte[], int, boolean)}, for a sample that may be made of several regions.
+     */
+    public String addStructuralGuess(final Sample _sample) {
+        final String charset = UnicodeValidator.detect(_sample);
+        if (null != charset) {
+            addKnownCharset(charset);
+        }
+        return charset;
+    }
+
+    /**
+     * Adds a charset whose confidence was computed elsewhere (for instance, by a {@link StreamingDetector}).
+     */
+    void addScoredCharset(final String _charset, final Confidence _confidence) {
+        addConfidence(_charset, _confidence);
     }
 
     public void addKnownCharset(final String _charset) {
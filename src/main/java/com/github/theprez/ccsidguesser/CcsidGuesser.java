@@ -1,51 +1,130 @@
 package com.github.theprez.ccsidguesser;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
 
 import com.github.theprez.ccsidguesser.CcsidConfidenceScorer.Confidence;
+import com.github.theprez.ccsidguesser.SampleReader.SamplingMode;
+import com.github.theprez.ccsidguesser.Stats.Counter;
+import com.github.theprez.ccsidguesser.Stats.Phase;
 import com.github.theprez.jcmdutils.AppLogger;
-import com.github.theprez.jcmdutils.ProcessLauncher;
 import com.github.theprez.jcmdutils.StringUtils;
 
 public class CcsidGuesser {
 
     enum ConvertMode {
-        DOTBAK, DOTUTF8, INPLACE, NONE
+        DOTBAK, DOTUTF8, INPLACE, NONE, STDOUT
+    }
+
+    /**
+     * The options that drive the per-file pipeline. These are shared (read-only) between batch workers.
+     */
+    static class Options {
+        boolean archives = false;
+        boolean autofix = false;
+        ConvertMode convertMode = ConvertMode.NONE;
+        long convertMemory = 256L * 1024 * 1024;
+        int convertThreads = 1;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean ordered = false;
+        OutputFormat outputFormat = OutputFormat.CCSID;
+        int sampleSize = 1024 * 128;
+        /** The window size for {@link Segmenter}, or 0 to guess one encoding for the whole file */
+        int segmentWindow = 0;
+        int showNum = 1;
+        boolean staged = false;
+        int threads = 1;
+        ForkJoinPool scoringPool = null;
+        CharacterWeights weights = CharacterWeights.getDefault();
+        SamplingMode sampling = SamplingMode.HEAD;
+        DetectionCache cache = null;
+        CcsidTagStore tagStore = null;
     }
 
     enum OutputFormat {
-        CCSID, CONFIDENCE, ENC;
+        CCSID, CONFIDENCE, ENC, LINE;
 
         public void print(final PrintStream _out, final String _charset, final double _confidence, final int _ccsid) {
+            print(_out, null, _charset, _confidence, _ccsid);
+        }
+
+        /**
+         * Prints a single result. When a name is given (multi-file mode), the line is prefixed with it.
+         * The <tt>LINE</tt> format is tab-separated and meant for machines: name, CCSID, encoding, confidence.
+         */
+        public void print(final PrintStream _out, final String _name, final String _charset, final double _confidence, final int _ccsid) {
+            if (LINE == this) {
+                _out.println(String.format("%s\t%d\t%s\t%.4f", null == _name ? "-" : _name, _ccsid, _charset, _confidence));
+                return;
+            }
+            final String prefix = null == _name ? "" : _name + ": ";
             if (CCSID == this) {
-                _out.println("" + _ccsid);
+                _out.println(prefix + _ccsid);
             } else if (ENC == this) {
-                _out.println("" + _ccsid + " (" + _charset + ")");
+                _out.println(prefix + _ccsid + " (" + _charset + ")");
             } else if (CONFIDENCE == this) {
                 final String msg = String.format("%d  (%s) confidence=%02f", _ccsid, _charset, _confidence);
-                _out.println(msg);
+                _out.println(prefix + msg);
+            }
+        }
+
+        /**
+         * Prints one segment of a file (see {@link Segmenter}): its byte range, with the end exclusive, and its
+         * encoding. The <tt>LINE</tt> format is tab-separated: name, start, end, CCSID, encoding.
+         */
+        public void printSegment(final PrintStream _out, final String _name, final long _start, final long _end, final String _charset, final int _ccsid) {
+            if (LINE == this) {
+                _out.println(String.format("%s\t%d\t%d\t%d\t%s", null == _name ? "-" : _name, _start, _end, _ccsid, _charset));
+                return;
+            }
+            final String prefix = (null == _name ? "" : _name + ": ") + _start + "-" + _end + ": ";
+            if (CCSID == this) {
+                _out.println(prefix + _ccsid);
+            } else {
+                _out.println(prefix + _ccsid + " (" + _charset + ")");
             }
         }
     }
 
+    /**
+     * The names of every charset the JVM supports. Enumerating them instantiates every charset, so it's done at most
+     * once, and only when a sample actually needs scoring.
+     */
+    private static class SupportedCharsetsHolder {
+        static final List<String> NAMES = Collections.unmodifiableList(new ArrayList<String>(Charset.availableCharsets().keySet()));
+    }
+
+    static final String[] PREFERRED_CCSIDS = new String[] { "UTF8", "UTF-8", "ISO8859_1", "ISO8859_2", "ISO8859_3", "ISO8859_4", "ISO8859_5", "ISO8859_6", "ISO8859_7", "ISO8859_8", "ISO8859_9", "ISO8859_10", "ISO8859_11", "ISO8859_12", "ISO8859_14", "Cp1250", "Cp1251", "Cp1252", "Cp1253", "Cp1254", "Cp1255",
+            "Cp1256", "Cp1257", "Cp037", "Cp1140", "Cp273", "Cp1141", "Cp277", "Cp1142", "Cp278", "Cp1143", "Cp280", "Cp1144", "Cp284", "Cp1145", "Cp285", "Cp1146", "Cp297", "Cp1147", "Cp500", "Cp1148", "Cp871", "Cp1149", "Cp1047", "Cp924" };
+
+    /** The exit code when some of the input was classified as binary */
+    static final int EXIT_BINARY = 3;
     private static final int SHOW_ALL = -1;
     private static final int SHOW_TIES_ONLY = -2;
+    private static final int STAGED_MIN_SURVIVORS = 8;
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
     public static final byte[] UTF16BE_BOM = { (byte) 0xfe, (byte) 0xff };
     public static final byte[] UTF16LE_BOM = { (byte) 0xff, (byte) 0xfe };
 
@@ -54,80 +133,87 @@ public class CcsidGuesser {
     public static final byte[] UTF32LE_BOM = { (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xfe };
     public static final byte[] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
 
-    private static void convertFileToUTF8(final AppLogger _logger, final ConvertMode convertMode, final int _ccsid, final File _file) throws IOException, InterruptedException {
-        InputStreamReader in = null;
-        OutputStreamWriter out = null;
-        final File tagFile;
-        try {
-            if (ConvertMode.NONE == convertMode) {
-                return;
-            } else if (ConvertMode.DOTUTF8 == convertMode) {
-                in = new InputStreamReader(new BufferedInputStream(new FileInputStream(_file), 1024 * 1024), CcsidUtils.ccsidToEncoding(_ccsid, true));
-                final File utf8File = new File(_file.getAbsolutePath() + ".utf8");
-                out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(utf8File), 1024 * 1024), "UTF-8");
-                tagFile = utf8File;
-            } else if (ConvertMode.DOTBAK == convertMode || ConvertMode.INPLACE == convertMode) {
-                final File destFile = new File(_file.getAbsolutePath());
-                final File backupFile = new File(_file.getAbsolutePath() + ".bak");
-                if (!_file.renameTo(backupFile)) {
-                    throw new IOException("Unable to create backup file " + backupFile);
-                }
-
-                in = new InputStreamReader(new BufferedInputStream(new FileInputStream(backupFile), 1024 * 1024), CcsidUtils.ccsidToEncoding(_ccsid, true));
-                out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(destFile), 1024 * 1024), "UTF-8");
-                tagFile = destFile;
-                if (ConvertMode.INPLACE == convertMode) {
-                    backupFile.deleteOnExit();
-                }
+    /**
+     * Converts a file to UTF-8. When the sample is the head of the file and the channel it was read from is given, the
+     * conversion carries on from where the sample ended, so the file is only read once.
+     *
+     * @param _sample
+     *            the sample that was read from the channel, or <tt>null</tt>
+     * @param _channel
+     *            the channel the sample was read from, positioned just past it, or <tt>null</tt>
+     */
+    private static void convertFileToUTF8(final AppLogger _logger, final Options _options, final int _ccsid, final File _file, final Sample _sample, final FileChannel _channel) throws IOException, InterruptedException {
+        final ConvertMode convertMode = _options.convertMode;
+        if (ConvertMode.NONE == convertMode) {
+            return;
+        }
+        final String encoding = CcsidUtils.ccsidToEncoding(_ccsid, true);
+        // A one-region sample is always the head of the file
+        final boolean fused = null != _sample && null != _channel && 1 == _sample.getRegionCount();
+        if (ConvertMode.STDOUT == convertMode) {
+            if (fused) {
+                convertToStdout(encoding, ByteBuffer.wrap(_sample.getData()), _channel);
             } else {
-                throw new RuntimeException("unsupported conversion mode: " + convertMode.name());
-            }
-            final char[] cbuf = new char[1024 * 1024];
-            int bytesRead = -1;
-            while (-1 != (bytesRead = in.read(cbuf))) {
-                out.write(cbuf, 0, bytesRead);
-            }
-            setCcsidTag(_logger, tagFile, 1208);
-            _logger.println_success("Conversion to UTF-8 complete!");
-        } finally {
-            if (null != in) {
-                in.close();
-            }
-            if (null != out) {
-                out.close();
+                try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+                    convertToStdout(encoding, ByteBuffer.allocate(0), channel);
+                }
             }
+            return;
+        }
+        final Stats.Timer timer = Stats.start(Phase.CONVERT);
+        final File tagFile;
+        if (1 < _options.convertThreads) {
+            // the chunks are read independently, so there's nothing to gain from the sample that was already read
+            tagFile = Transcoder.convertFile(_file, convertMode, encoding, _options.convertThreads, _options.convertMemory);
+        } else if (fused) {
+            tagFile = Transcoder.convertFile(_file, convertMode, encoding, ByteBuffer.wrap(_sample.getData()), _channel);
+        } else {
+            tagFile = Transcoder.convertFile(_file, convertMode, encoding);
         }
+        Stats.stop(timer);
+        setCcsidTag(_logger, _options.tagStore, tagFile, 1208);
+        _logger.println_success("Conversion to UTF-8 complete!");
     }
 
-    private static Entry<Integer, String> getTaggedCcsidAndEncoding(final AppLogger _logger, final File _file) {
-        if (!isIBMi()) {
+    /**
+     * Writes the prefix, then the rest of the channel, to standard output as UTF-8.
+     */
+    private static void convertToStdout(final String _encoding, final ByteBuffer _prefix, final ReadableByteChannel _rest) throws IOException {
+        final Stats.Timer timer = Stats.start(Phase.CONVERT);
+        System.out.flush();
+        new Transcoder(_encoding).transcode(_prefix, _rest, Channels.newChannel(System.out));
+        System.out.flush();
+        Stats.stop(timer);
+    }
+
+    private static Entry<Integer, String> getTaggedCcsidAndEncoding(final AppLogger _logger, final CcsidTagStore _tagStore, final File _file) {
+        if (null == _tagStore || null == _file) {
             return null;
         }
+        final Stats.Timer timer = Stats.start(Phase.TAG_LOOKUP);
         try {
-            final Process p = Runtime.getRuntime().exec(new String[] { "/QOpenSys/usr/bin/attr", _file.getAbsolutePath(), "ccsid" });
-            String output = "";
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"))) {
-                String line;
-                while (null != (line = br.readLine())) {
-                    output += line + "\n";
-                }
+            final int ccsid = _tagStore.getCcsid(_file);
+            if (0 > ccsid) {
+                return null;
             }
-            output = output.trim();
-            _logger.println_verbose("attr rc=" + p.waitFor());
-            final int ccsid = Integer.valueOf(output);
             final String encoding = CcsidUtils.ccsidToEncoding(ccsid, true);
             _logger.printfln_verbose("INFO: currently-tagged encoding is %s (ccsid %d)", encoding, ccsid);
-            final HashMap<Integer, String> ccsidAndEncodingMap = new HashMap<Integer, String>();
-            ccsidAndEncodingMap.put(ccsid, encoding);
-            for (final Entry<Integer, String> ret : ccsidAndEncodingMap.entrySet()) {
-                return ret;
-            }
+            return new SimpleImmutableEntry<Integer, String>(ccsid, encoding);
         } catch (final Exception e) {
             _logger.printExceptionStack_verbose(e);
+        } finally {
+            Stats.stop(timer);
         }
         return null;
     }
 
+    /**
+     * @return the CCSID from {@link #getTaggedCcsidAndEncoding(AppLogger, CcsidTagStore, File)}, or -1 if there's no tag
+     */
+    private static int getCcsid(final Entry<Integer, String> _tagged) {
+        return null == _tagged ? -1 : _tagged.getKey();
+    }
+
     private static boolean isIBMi() {
         return System.getProperty("os.name", "Misty").matches("(?i)OS/?400");
     }
@@ -138,165 +224,949 @@ public class CcsidGuesser {
         args.addAll(Arrays.asList(_args));
 
         final AppLogger logger = AppLogger.getSingleton(args.remove("-v"));
-        String fileStr = null;
-        boolean autofix = false;
-        ConvertMode convertMode = ConvertMode.NONE;
-        OutputFormat outputFormat = OutputFormat.CCSID;
-        int showNum = 1;
-        int sampleSize = 1024 * 128;
+        final LinkedList<String> fileStrs = new LinkedList<String>();
+        String fileListStr = null;
+        String cacheStr = null;
+        String statsFormat = null;
+        String tagStoreStr = null;
+        int serverPort = -1;
+        String watchStr = null;
+        long watchSettle = DirectoryWatcher.DEFAULT_SETTLE_MILLIS;
+        int clientPort = -1;
+        final Options options = new Options();
 
         for (final String remainingArg : args) {
             if (remainingArg.toLowerCase().startsWith("--format=")) {
                 try {
-                    outputFormat = OutputFormat.valueOf(remainingArg.replaceFirst(".*=", "").toUpperCase());
+                    options.outputFormat = OutputFormat.valueOf(remainingArg.replaceFirst(".*=", "").toUpperCase());
                 } catch (final Exception e) {
                     logger.println_err("ERROR: invalid output format specifier");
                 }
             } else if (remainingArg.toLowerCase().startsWith("--convert=")) {
                 try {
-                    convertMode = ConvertMode.valueOf(remainingArg.replaceFirst(".*=", "").toUpperCase());
+                    options.convertMode = ConvertMode.valueOf(remainingArg.replaceFirst(".*=", "").toUpperCase());
                 } catch (final Exception e) {
                     logger.println_err("ERROR: invalid conversion mode specifier");
                 }
             } else if (remainingArg.toLowerCase().startsWith("--show=")) {
                 final String val = remainingArg.replaceFirst(".*=", "");
                 if (val.equalsIgnoreCase("ALL")) {
-                    showNum = SHOW_ALL;
+                    options.showNum = SHOW_ALL;
                 } else if (val.equalsIgnoreCase("top")) {
-                    showNum = SHOW_TIES_ONLY;
+                    options.showNum = SHOW_TIES_ONLY;
                 } else {
                     try {
-                        showNum = Integer.valueOf(val.toLowerCase().replace("top", ""));
+                        options.showNum = Integer.valueOf(val.toLowerCase().replace("top", ""));
                     } catch (final Exception e) {
                         logger.println_err("ERROR: invalid argument: " + remainingArg);
                         printUsageAndExit();
                     }
                 }
-            } else if (remainingArg.equalsIgnoreCase("--sample-size=")) {
+            } else if (remainingArg.toLowerCase().startsWith("--sample-size=")) {
                 final String val = remainingArg.replaceFirst(".*=", "");
                 try {
-                    sampleSize = 1024 * Integer.valueOf(val);
+                    options.sampleSize = 1024 * Integer.valueOf(val);
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--jobs=")) {
+                try {
+                    options.jobs = Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (1 > options.jobs) {
+                        throw new NumberFormatException();
+                    }
                 } catch (final Exception e) {
                     logger.println_err("ERROR: invalid argument: " + remainingArg);
                     printUsageAndExit();
                 }
+            } else if (remainingArg.toLowerCase().startsWith("--threads=")) {
+                try {
+                    options.threads = Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (1 > options.threads) {
+                        throw new NumberFormatException();
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--convert-threads=")) {
+                try {
+                    options.convertThreads = Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (1 > options.convertThreads) {
+                        throw new NumberFormatException();
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--convert-memory=")) {
+                try {
+                    options.convertMemory = 1024L * 1024 * Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (1 > options.convertMemory) {
+                        throw new NumberFormatException();
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.equalsIgnoreCase("--archives")) {
+                options.archives = true;
+            } else if (remainingArg.equalsIgnoreCase("--segments")) {
+                options.segmentWindow = Segmenter.DEFAULT_WINDOW;
+            } else if (remainingArg.toLowerCase().startsWith("--segments=")) {
+                try {
+                    options.segmentWindow = Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (Segmenter.MIN_WINDOW > options.segmentWindow) {
+                        throw new NumberFormatException();
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--weights=")) {
+                try {
+                    options.weights = CharacterWeights.load(new File(remainingArg.replaceFirst("^[^=]*=", "")));
+                } catch (final IOException e) {
+                    logger.println_err("ERROR: " + e.getLocalizedMessage());
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--sampling=")) {
+                try {
+                    options.sampling = SamplingMode.valueOf(remainingArg.replaceFirst(".*=", "").toUpperCase());
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid sampling mode specifier");
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--server=") || remainingArg.toLowerCase().startsWith("--client=")) {
+                try {
+                    final int port = Integer.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (0 >= port || 65535 < port) {
+                        throw new NumberFormatException();
+                    }
+                    if (remainingArg.toLowerCase().startsWith("--server=")) {
+                        serverPort = port;
+                    } else {
+                        clientPort = port;
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.equalsIgnoreCase("--stats") || remainingArg.toLowerCase().startsWith("--stats=")) {
+                statsFormat = remainingArg.contains("=") ? remainingArg.replaceFirst(".*=", "").toLowerCase() : "text";
+                if (!"text".equals(statsFormat) && !"json".equals(statsFormat)) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--tag-store=")) {
+                tagStoreStr = remainingArg.replaceFirst("^[^=]*=", "");
+            } else if (remainingArg.toLowerCase().startsWith("--cache=")) {
+                cacheStr = remainingArg.replaceFirst("^[^=]*=", "");
+            } else if (remainingArg.toLowerCase().startsWith("--watch=")) {
+                watchStr = remainingArg.replaceFirst("^[^=]*=", "");
+            } else if (remainingArg.toLowerCase().startsWith("--watch-settle=")) {
+                try {
+                    watchSettle = Long.valueOf(remainingArg.replaceFirst(".*=", ""));
+                    if (0 > watchSettle) {
+                        throw new NumberFormatException();
+                    }
+                } catch (final Exception e) {
+                    logger.println_err("ERROR: invalid argument: " + remainingArg);
+                    printUsageAndExit();
+                }
+            } else if (remainingArg.toLowerCase().startsWith("--file-list=")) {
+                fileListStr = remainingArg.replaceFirst("^[^=]*=", "");
+            } else if (remainingArg.equalsIgnoreCase("--staged")) {
+                options.staged = true;
+            } else if (remainingArg.equalsIgnoreCase("--ordered")) {
+                options.ordered = true;
             } else if (remainingArg.equalsIgnoreCase("--autofix")) {
-                autofix = true;
+                options.autofix = true;
+            } else if (remainingArg.equalsIgnoreCase("--dump-ccsid-index")) {
+                CcsidUtils.dumpIndex(System.out);
+                return;
             } else if (remainingArg.equalsIgnoreCase("--help") || remainingArg.equalsIgnoreCase("-h")) {
                 printUsageAndExit();
-            } else if (!remainingArg.startsWith("-")) {
-                if (null != fileStr) {
-                    logger.println_err("ERROR: Only one file at a time is supported");
-                    printUsageAndExit();
-                }
-                fileStr = remainingArg;
+            } else if (!remainingArg.startsWith("-") || "-".equals(remainingArg)) {
+                fileStrs.add(remainingArg);
             } else {
                 logger.println_warn("WARNING: Argument '" + remainingArg + "' unrecognized and will be ignored");
             }
         }
-        if (null == fileStr) {
+        if (fileStrs.isEmpty() && null == fileListStr && 0 > serverPort && null == watchStr) {
             logger.println_err("ERROR: No file specified");
             printUsageAndExit();
         }
-        final CcsidConfidenceScorer tracker = new CcsidConfidenceScorer();
-        final File file = new File(fileStr);
-        try (FileInputStream fis = new FileInputStream(file)) {
-            final byte[] sampleData = new byte[sampleSize];
-            Arrays.fill(sampleData, (byte) 0x00);
-            final int bytesRead = (0 == file.length()) ? 0 : fis.read(sampleData);
-            if (0 > bytesRead) {
-                logger.println_err("ERROR: unable to read file");
-                throw new IOException("Unable to read file");
-            }
-            fis.close();
-            final SortedMap<String, Charset> supportedCharsets = Charset.availableCharsets();
-            final LinkedHashSet<String> ccsidList = new LinkedHashSet<String>();
-            final String[] preferredCcsids = new String[] { "UTF8", "UTF-8", "ISO8859_1", "ISO8859_2", "ISO8859_3", "ISO8859_4", "ISO8859_5", "ISO8859_6", "ISO8859_7", "ISO8859_8", "ISO8859_9", "ISO8859_10", "ISO8859_11", "ISO8859_12", "ISO8859_14", "Cp1250", "Cp1251", "Cp1252", "Cp1253", "Cp1254", "Cp1255", "Cp1256",
-                    "Cp1257", "Cp037", "Cp1140", "Cp273", "Cp1141", "Cp277", "Cp1142", "Cp278", "Cp1143", "Cp280", "Cp1144", "Cp284", "Cp1145", "Cp285", "Cp1146", "Cp297", "Cp1147", "Cp500", "Cp1148", "Cp871", "Cp1149", "Cp1047", "Cp924" };
-            final Entry<Integer, String> taggedEncoding = getTaggedCcsidAndEncoding(logger, new File(fileStr));
-            if (null != taggedEncoding && StringUtils.isNonEmpty(taggedEncoding.getValue())) {
-                ccsidList.add(taggedEncoding.getValue());
-            }
-            ccsidList.addAll(Arrays.asList(preferredCcsids));
-            ccsidList.addAll(supportedCharsets.keySet());
-
-            logger.println_verbose("CCSID preference list ---> " + StringUtils.arrayToSpaceSeparatedString(ccsidList.toArray(new String[0])));
-            String bomEncoding = null;
-            if (startsWith(sampleData, UTF8_BOM)) {
-                bomEncoding = "UTF8";
-                ccsidList.remove("UTF-8");
-            } else if (startsWith(sampleData, UTF16BE_BOM)) {
-                bomEncoding = "UTF-16BE";
-            } else if (startsWith(sampleData, UTF16LE_BOM)) {
-                bomEncoding = "UTF-16LE";
-            } else if (startsWith(sampleData, UTF32LE_BOM)) {
-                bomEncoding = "UTF-32LE";
-            } else if (startsWith(sampleData, UTF32BE_BOM)) {
-                bomEncoding = "UTF-32BE";
-            }
-            if (null != bomEncoding) {
-                tracker.addKnownCharset(bomEncoding);
-                ccsidList.remove(bomEncoding);
-                final Charset cs = Charset.forName(bomEncoding);
-                for (final String alias : cs.aliases()) {
-                    ccsidList.remove(alias);
+        if (null != statsFormat) {
+            if (0 < clientPort) {
+                logger.println_warn("WARNING: --stats doesn't apply to --client (the server does the work) and will be ignored");
+                statsFormat = null;
+            } else {
+                Stats.setEnabled(true);
+            }
+        }
+        if (null != tagStoreStr) {
+            try {
+                options.tagStore = new FileTagStore(logger, new File(tagStoreStr));
+            } catch (final IOException e) {
+                logger.println_err("ERROR: unable to open tag store: " + e.getLocalizedMessage());
+                printUsageAndExit();
+            }
+        } else if (isIBMi()) {
+            options.tagStore = new IbmiTagStore(logger);
+        }
+        if (1 < options.threads) {
+            // One pool shared by every file, so --jobs and --threads don't multiply into a thread explosion
+            options.scoringPool = new ForkJoinPool(options.threads);
+        }
+        if (null != cacheStr) {
+            if (SHOW_ALL == options.showNum || DetectionCache.MAX_RANKED < options.showNum) {
+                // the cache only keeps the top of each ranking
+                logger.println_warn("WARNING: --cache doesn't apply when showing more than " + DetectionCache.MAX_RANKED + " guesses and will be ignored");
+            } else {
+                try {
+                    options.cache = DetectionCache.open(new File(cacheStr), DetectionCache.fingerprint(options.sampleSize, options.sampling, getStagedMinSurvivors(options), allowsStructuralGuess(options), options.weights));
+                } catch (final IOException e) {
+                    logger.println_warn("WARNING: unable to open cache: " + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        if (0 < serverPort) {
+            if (null != statsFormat) {
+                // the server runs until it's killed, so the report comes on the way out
+                final String format = statsFormat;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> printStats(format)));
+            }
+            try {
+                new DetectionServer(logger, options, serverPort, options.jobs).run();
+            } catch (final Exception e) {
+                logger.printExceptionStack_verbose(e);
+                logger.println_err(e.getLocalizedMessage());
+            }
+            return;
+        }
+
+        if (null != watchStr) {
+            if (!fileStrs.isEmpty() || null != fileListStr || 0 < clientPort) {
+                logger.println_err("ERROR: --watch can't be combined with files, --file-list, or --client");
+                printUsageAndExit();
+            }
+            if (ConvertMode.STDOUT == options.convertMode) {
+                logger.println_err("ERROR: --convert=stdout can't be used with --watch");
+                printUsageAndExit();
+            }
+            if (!new File(watchStr).isDirectory()) {
+                logger.println_err("ERROR: no such directory: " + watchStr);
+                printUsageAndExit();
+            }
+            if (null != statsFormat) {
+                // watching goes on until the process is killed, so the report comes on the way out
+                final String format = statsFormat;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> printStats(format)));
+            }
+            try {
+                new DirectoryWatcher(logger, options, new File(watchStr), watchSettle).run();
+            } catch (final Exception e) {
+                logger.printExceptionStack_verbose(e);
+                logger.println_err(e.getLocalizedMessage());
+            }
+            return;
+        }
+
+        if (fileStrs.contains("-")) {
+            if (1 != fileStrs.size() || null != fileListStr) {
+                logger.println_err("ERROR: standard input ('-') can't be combined with other files");
+                printUsageAndExit();
+            }
+            if (options.autofix) {
+                logger.println_warn("WARNING: --autofix doesn't apply to standard input and will be ignored");
+            }
+            if (ConvertMode.NONE != options.convertMode && ConvertMode.STDOUT != options.convertMode) {
+                logger.println_warn("WARNING: only --convert=stdout applies to standard input; --convert will be ignored");
+                options.convertMode = ConvertMode.NONE;
+            }
+            if (0 < options.segmentWindow) {
+                logger.println_warn("WARNING: --segments doesn't apply to standard input and will be ignored");
+                options.segmentWindow = 0;
+            }
+            boolean binary = false;
+            try {
+                binary = BinaryClassifier.CCSID_BINARY == processStream(logger, options, System.in, ConvertMode.STDOUT == options.convertMode ? System.err : System.out);
+            } catch (final Exception e) {
+                logger.printExceptionStack_verbose(e);
+                logger.println_err(e.getLocalizedMessage());
+            }
+            closeTagStore(logger, options);
+            printStats(statsFormat);
+            exitIfBinary(binary);
+            return;
+        }
+
+        if (0 < clientPort) {
+            if (ConvertMode.STDOUT == options.convertMode) {
+                logger.println_err("ERROR: --convert=stdout can't be used with --client");
+                printUsageAndExit();
+            }
+            boolean binary = false;
+            try {
+                binary = DetectionServer.runClient(logger, clientPort, options, fileStrs, fileListStr);
+            } catch (final Exception e) {
+                logger.printExceptionStack_verbose(e);
+                logger.println_err(e.getLocalizedMessage());
+            }
+            exitIfBinary(binary);
+            return;
+        }
+
+        // A single, plain file keeps the original one-shot behavior (and output). Anything else goes through the batch scanner.
+        if (1 == fileStrs.size() && null == fileListStr && !BatchScanner.isGlob(fileStrs.getFirst()) && !new File(fileStrs.getFirst()).isDirectory()) {
+            boolean binary = false;
+            try {
+                // With --convert=stdout, standard output carries the converted data, so results go to standard error
+                binary = BinaryClassifier.CCSID_BINARY == processFile(logger, options, new File(fileStrs.getFirst()), null, ConvertMode.STDOUT == options.convertMode ? System.err : System.out);
+            } catch (final Exception e) {
+                logger.printExceptionStack_verbose(e);
+                logger.println_err(e.getLocalizedMessage());
+            }
+            saveCache(logger, options);
+            closeTagStore(logger, options);
+            printStats(statsFormat);
+            exitIfBinary(binary);
+            return;
+        }
+        if (ConvertMode.STDOUT == options.convertMode) {
+            logger.println_err("ERROR: --convert=stdout only works with a single file or standard input");
+            printUsageAndExit();
+        }
+        final BatchScanner scanner = new BatchScanner(logger, options);
+        try {
+            scanner.run(fileStrs, fileListStr);
+        } catch (final Exception e) {
+            logger.printExceptionStack_verbose(e);
+            logger.println_err(e.getLocalizedMessage());
+        }
+        saveCache(logger, options);
+        closeTagStore(logger, options);
+        printStats(statsFormat);
+        exitIfBinary(0 < scanner.getBinaryFileCount());
+    }
+
+    /**
+     * Exits with {@link #EXIT_BINARY} if any of the input was binary, so scripts can tell without parsing the output.
+     */
+    private static void exitIfBinary(final boolean _binary) {
+        if (_binary) {
+            System.out.flush();
+            System.exit(EXIT_BINARY);
+        }
+    }
+
+    /**
+     * Runs the full pipeline (sample read, scoring, output, and optional autofix/conversion) for a single file.
+     *
+     * @param _logger
+     *            the logger
+     * @param _options
+     *            the options in effect
+     * @param _file
+     *            the file to process
+     * @param _displayName
+     *            the name to prefix output with, or <tt>null</tt> for the classic single-file output
+     * @param _out
+     *            where results are printed
+     * @return the top guess, or {@link BinaryClassifier#CCSID_BINARY} if the file looks binary
+     */
+    static int processFile(final AppLogger _logger, final Options _options, final File _file, final String _displayName, final PrintStream _out) throws IOException, InterruptedException {
+        // The cache only knows about whole-file guesses
+        final DetectionCache cache = 0 < _options.segmentWindow ? null : _options.cache;
+        Stats.add(Counter.FILES, 1);
+        BasicFileAttributes attrs = null;
+        Entry<Integer, String> tagged = null;
+        if (null != cache) {
+            // An unchanged file is answered without being read at all. The tag decides ties in the ranking, so it has
+            // to match too.
+            attrs = Files.readAttributes(_file.toPath(), BasicFileAttributes.class);
+            tagged = getTaggedCcsidAndEncoding(_logger, _options.tagStore, _file);
+            final CcsidConfidenceScorer cached = cache.lookup(_file, attrs, getCcsid(tagged));
+            if (null != cached) {
+                _logger.println_verbose("Using cached result for " + _file);
+                Stats.add(Counter.CACHE_HITS, 1);
+                return finishFile(_logger, _options, cached, _file, _displayName, _out, null, null);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            final Stats.Timer timer = Stats.start(Phase.READ);
+            final Sample sample = SampleReader.read(channel, _options.sampleSize, _options.sampling);
+            Stats.stop(timer);
+            Stats.add(Counter.BYTES_READ, sample.getLength());
+            // (with --convert=stdout, an archive is passed through like any other binary data)
+            if (_options.archives && ConvertMode.STDOUT != _options.convertMode) {
+                final ArchiveReader.Format format = ArchiveReader.detect(sample.getData(), sample.getLength());
+                if (null != format) {
+                    return processArchive(_logger, _options, format, _file, _displayName, _out);
                 }
             }
-            for (final String charset : ccsidList) {
-                if (-1 == CcsidUtils.unknownStringToCCSID(charset)) {
-                    continue;
+            final Stats.Timer binaryTimer = Stats.start(Phase.STRUCTURAL);
+            final String binary = BinaryClassifier.classify(sample);
+            Stats.stop(binaryTimer);
+            if (null != binary) {
+                // Binary results aren't cached; classifying the sample again is about as cheap as a lookup
+                return finishBinary(_logger, _options, binary, _file, _displayName, _out, null);
+            }
+            if (0 < _options.segmentWindow) {
+                return processSegments(_logger, _options, _file, _displayName, _out, channel);
+            }
+            CcsidConfidenceScorer tracker = null;
+            long sampleHash = 0;
+            if (null != cache) {
+                sampleHash = DetectionCache.hash(sample, getCcsid(tagged));
+                tracker = cache.lookup(sampleHash);
+                if (null != tracker) {
+                    Stats.add(Counter.CACHE_HITS, 1);
                 }
-                tracker.addCharset(sampleData, charset, null == bomEncoding ? 1.00 : 0.50);
+            } else {
+                tagged = getTaggedCcsidAndEncoding(_logger, _options.tagStore, _file);
             }
+            if (null == tracker) {
+                tracker = score(_logger, _options, tagged, sample);
+            }
+            if (null != cache) {
+                cache.put(_file, attrs, getCcsid(tagged), sampleHash, tracker);
+            }
+            // The channel is still open (and positioned just past the sample), so conversion can pick up from there
+            return finishFile(_logger, _options, tracker, _file, _displayName, _out, sample, channel);
+        }
+    }
 
-            int printed = 0;
-            int topGuess = -1;
-            for (final Entry<Confidence, LinkedList<String>> entry : tracker.getSortedData().entrySet()) {
-                final LinkedList<String> charsets = entry.getValue();
-                final Confidence confidence = entry.getKey();
-                if (confidence.getConfidence() <= 0.0003) {
-                    break;
+    /**
+     * Scores a sample of each member of an archive, read straight from the archive, and prints the results under the
+     * name <tt>archive!member</tt>. Members are only reported; they're never tagged or converted.
+     *
+     * @return {@link BinaryClassifier#CCSID_BINARY} if any member looks binary, otherwise the top guess for the first
+     *         member (or -1 if there are no members)
+     */
+    private static int processArchive(final AppLogger _logger, final Options _options, final ArchiveReader.Format _format, final File _file, final String _displayName, final PrintStream _out) throws IOException {
+        if (_options.autofix || ConvertMode.NONE != _options.convertMode) {
+            _logger.println_warn("WARNING: archive members can't be tagged or converted; " + _file + " will only be reported");
+        }
+        final String archiveName = null == _displayName ? _file.getPath() : _displayName;
+        final int[] ret = { -1 };
+        ArchiveReader.read(_file, _format, _options.sampleSize, (_name, _sample) -> {
+            Stats.add(Counter.ARCHIVE_MEMBERS, 1);
+            Stats.add(Counter.BYTES_READ, _sample.getLength());
+            final String memberName = archiveName + "!" + _name;
+            final Stats.Timer binaryTimer = Stats.start(Phase.STRUCTURAL);
+            final String binary = BinaryClassifier.classify(_sample);
+            Stats.stop(binaryTimer);
+            final int ccsid;
+            if (null != binary) {
+                Stats.add(Counter.BINARY_FILES, 1);
+                _logger.println_verbose(memberName + " looks like binary data (" + binary + ")");
+                _options.outputFormat.print(_out, memberName, "binary", 100, BinaryClassifier.CCSID_BINARY);
+                ccsid = BinaryClassifier.CCSID_BINARY;
+            } else {
+                ccsid = printResults(score(_logger, _options, null, _sample), _options, memberName, _out);
+            }
+            if (-1 == ret[0] || BinaryClassifier.CCSID_BINARY == ccsid) {
+                ret[0] = ccsid;
+            }
+        });
+        if (-1 == ret[0]) {
+            _logger.println_verbose(_file + " has no members to scan");
+        }
+        return ret[0];
+    }
+
+    /**
+     * Splits a whole file into segments that each seem to be in a single encoding (see {@link Segmenter}), prints them,
+     * and converts each one from its own encoding if a conversion was asked for. The file is only tagged if it turns
+     * out to be all in one encoding.
+     *
+     * @return the CCSID of the first segment
+     */
+    private static int processSegments(final AppLogger _logger, final Options _options, final File _file, final String _displayName, final PrintStream _out, final FileChannel _channel) throws IOException, InterruptedException {
+        final Segmenter segmenter = new Segmenter(Segmenter.getCandidates(Arrays.asList(PREFERRED_CCSIDS)), _options.weights, _options.segmentWindow);
+        final ByteBuffer buf = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+        final Stats.Timer timer = Stats.start(Phase.SCORE);
+        long pos = 0;
+        int read;
+        while (-1 != (read = _channel.read(buf, pos))) {
+            pos += read;
+            buf.flip();
+            segmenter.update(buf);
+            buf.clear();
+        }
+        final List<Segmenter.Segment> segments = segmenter.finish();
+        Stats.stop(timer);
+        Stats.add(Counter.BYTES_READ, pos);
+        for (final Segmenter.Segment segment : segments) {
+            _options.outputFormat.printSegment(_out, _displayName, segment.getStart(), segment.getEnd(), segment.getCharset(), segment.getCcsid());
+        }
+        final int first = segments.get(0).getCcsid();
+        if (_options.autofix) {
+            if (1 == segments.size()) {
+                setCcsidTag(_logger, _options.tagStore, _file, first);
+            } else {
+                _logger.println_warn("WARNING: " + _file + " is in more than one encoding, so its CCSID tag was left alone");
+            }
+        }
+        if (ConvertMode.NONE == _options.convertMode || (1 == segments.size() && 1208 == first && ConvertMode.STDOUT != _options.convertMode)) {
+            return first;
+        }
+        final Stats.Timer convertTimer = Stats.start(Phase.CONVERT);
+        if (ConvertMode.STDOUT == _options.convertMode) {
+            System.out.flush();
+            Transcoder.transcodeSegments(_channel, segments, Channels.newChannel(System.out));
+            System.out.flush();
+            Stats.stop(convertTimer);
+            return first;
+        }
+        final File tagFile = Transcoder.convertFile(_file, _options.convertMode, segments);
+        Stats.stop(convertTimer);
+        setCcsidTag(_logger, _options.tagStore, tagFile, 1208);
+        _logger.println_success("Conversion to UTF-8 complete!");
+        return first;
+    }
+
+    /**
+     * Waits for queued tag changes to be made, and closes the tag store.
+     */
+    private static void closeTagStore(final AppLogger _logger, final Options _options) {
+        if (null == _options.tagStore) {
+            return;
+        }
+        try {
+            _options.tagStore.close();
+        } catch (final IOException e) {
+            _logger.printExceptionStack_verbose(e);
+            _logger.println_err("ERROR: unable to set CCSID tag: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static void saveCache(final AppLogger _logger, final Options _options) {
+        if (null == _options.cache) {
+            return;
+        }
+        try {
+            _options.cache.save();
+        } catch (final IOException e) {
+            _logger.printExceptionStack_verbose(e);
+            _logger.println_warn("WARNING: unable to save cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Scores a file's sample against every candidate charset.
+     *
+     * @param _tagged
+     *            the file's CCSID tag and its encoding (which goes first in the preference list), or <tt>null</tt>
+     */
+    private static CcsidConfidenceScorer score(final AppLogger _logger, final Options _options, final Entry<Integer, String> _tagged, final Sample _sample) {
+        final CcsidConfidenceScorer tracker = new CcsidConfidenceScorer();
+        tracker.setExecutor(_options.scoringPool);
+        tracker.setCharacterWeights(_options.weights);
+        // Most files are plain ASCII/UTF-8 (or obviously UTF-16/32). A structural check settles the top guess for
+        // those, and when only the top guess is wanted, without scoring a single candidate.
+        String structural = null;
+        if (!startsWithBom(_sample.getData())) {
+            final Stats.Timer timer = Stats.start(Phase.STRUCTURAL);
+            structural = tracker.addStructuralGuess(_sample);
+            Stats.stop(timer);
+            if (null != structural) {
+                Stats.add(Counter.STRUCTURAL_GUESSES, 1);
+                if (allowsStructuralGuess(_options)) {
+                    return tracker;
                 }
-                for (final String charset : charsets) {
-                    if (printed >= showNum && showNum >= 0) {
-                        break;
-                    }
-                    final int ccsid = CcsidUtils.unknownStringToCCSID(charset);
-                    outputFormat.print(System.out, charset, 100 * confidence.getConfidence(), ccsid);
-                    if (-1 == topGuess) {
-                        topGuess = ccsid;
+            }
+        }
+        // Likewise, a BOM settles the top guess, since every other candidate is marked down by half
+        final String bom = allowsStructuralGuess(_options) ? getBomEncoding(_sample.getData()) : null;
+        if (null != bom) {
+            tracker.addKnownCharset(bom);
+            Stats.add(Counter.STRUCTURAL_GUESSES, 1);
+            return tracker;
+        }
+        final String taggedEncoding = null == _tagged ? null : _tagged.getValue();
+        final LinkedHashSet<String> ccsidList = getPreferenceList(_logger, taggedEncoding);
+        if (null != structural) {
+            // already on top; the rest are only scored to fill out the guesses shown
+            removeCharset(ccsidList, structural);
+        }
+        final String bomEncoding = applyBom(_sample.getData(), ccsidList, tracker);
+        final LinkedList<String> candidates = filterByFamily(_logger, _options, _sample.getData(), _sample.getLength(), toCandidates(ccsidList), taggedEncoding);
+        tracker.setStagedScoring(getStagedMinSurvivors(_options));
+        final Stats.Timer timer = Stats.start(Phase.SCORE);
+        tracker.addCharsets(_sample, candidates, null == bomEncoding ? 1.00 : 0.50);
+        Stats.stop(timer);
+        return tracker;
+    }
+
+    /**
+     * Whether a structural guess (or a BOM) can be the whole ranking, with no other candidates scored: only when just
+     * the top guess is shown. Otherwise it's still the top guess, but the rest are scored to fill out the ranking.
+     */
+    static boolean allowsStructuralGuess(final Options _options) {
+        return 1 == _options.showNum;
+    }
+
+    /**
+     * @return the number of candidates that staged scoring keeps, or zero if scoring isn't staged
+     */
+    static int getStagedMinSurvivors(final Options _options) {
+        return _options.staged && SHOW_ALL != _options.showNum ? Math.max(STAGED_MIN_SURVIVORS, 2 * _options.showNum) : 0;
+    }
+
+    /**
+     * Reports a file (or stream) as binary. There's nothing to tag or convert, so with {@link ConvertMode#STDOUT} the
+     * data is passed through untouched, and every other conversion (and the autofix) is skipped.
+     *
+     * @param _reason
+     *            what kind of binary data it seems to be
+     * @param _file
+     *            the file, or <tt>null</tt> for a stream
+     * @param _passThrough
+     *            for a stream, what to copy to standard output with {@link ConvertMode#STDOUT}: the bytes read so far,
+     *            and the rest of the stream (ignored for files)
+     * @return {@link BinaryClassifier#CCSID_BINARY}
+     */
+    private static int finishBinary(final AppLogger _logger, final Options _options, final String _reason, final File _file, final String _displayName, final PrintStream _out, final ReadableByteChannel[] _passThrough) throws IOException {
+        Stats.add(Counter.BINARY_FILES, 1);
+        _logger.println_verbose((null == _file ? "Input" : _file.getPath()) + " looks like binary data (" + _reason + ")");
+        _options.outputFormat.print(_out, _displayName, "binary", 100, BinaryClassifier.CCSID_BINARY);
+        if (ConvertMode.STDOUT == _options.convertMode) {
+            _logger.println_warn("WARNING: binary data is written to standard output unconverted");
+            System.out.flush();
+            if (null != _file) {
+                Files.copy(_file.toPath(), System.out);
+            } else {
+                final ByteBuffer buf = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+                for (final ReadableByteChannel in : _passThrough) {
+                    while (-1 != in.read(buf)) {
+                        buf.flip();
+                        System.out.write(buf.array(), 0, buf.limit());
+                        buf.clear();
                     }
-                    printed++;
                 }
-                if (SHOW_TIES_ONLY == showNum) {
-                    break;
+            }
+            System.out.flush();
+        } else if (_options.autofix || ConvertMode.NONE != _options.convertMode) {
+            _logger.println_verbose("Skipping tagging and conversion of binary data");
+        }
+        return BinaryClassifier.CCSID_BINARY;
+    }
+
+    /**
+     * Prints the results for a scored file, and performs the autofix and/or conversion that were asked for.
+     *
+     * @return the top guess
+     */
+    private static int finishFile(final AppLogger _logger, final Options _options, final CcsidConfidenceScorer tracker, final File _file, final String _displayName, final PrintStream _out, final Sample _sample, final FileChannel _channel) throws IOException, InterruptedException {
+        final int topGuess = printResults(tracker, _options, _displayName, _out);
+        _logger.println_verbose("top guess was " + topGuess);
+        if (_options.autofix) {
+            setCcsidTag(_logger, _options.tagStore, _file, topGuess);
+        }
+        if (ConvertMode.STDOUT == _options.convertMode) {
+            // even data that's already UTF-8 has to pass through
+            convertFileToUTF8(_logger, _options, topGuess, _file, _sample, _channel);
+        } else if (ConvertMode.NONE != _options.convertMode) {
+            if (1208 == topGuess && null == _displayName) {
+                _logger.println("File already looks like UTF-8");
+            } else if (1208 == topGuess) {
+                // in a batch, standard output carries only the (named) results
+                _logger.println_verbose(_displayName + ": file already looks like UTF-8");
+            } else {
+                convertFileToUTF8(_logger, _options, topGuess, _file, _sample, _channel);
+            }
+        }
+        return topGuess;
+    }
+
+    /**
+     * Runs detection over data read from a stream (standard input, for instance), a chunk at a time, until either the
+     * sample size is reached or the stream ends. With {@link ConvertMode#STDOUT}, the bytes read for detection are kept,
+     * and then they and the rest of the stream are converted to standard output, all in one pass.
+     *
+     * @return the top guess, or {@link BinaryClassifier#CCSID_BINARY} if the data looks binary
+     */
+    static int processStream(final AppLogger _logger, final Options _options, final InputStream _in, final PrintStream _out) throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(_in);
+        final ByteBuffer buf = ByteBuffer.allocate(Math.min(STREAM_CHUNK_SIZE, _options.sampleSize));
+        Stats.add(Counter.FILES, 1);
+        // The first chunk is read in full before anything else, since the candidate list depends on whether there's a BOM
+        final Stats.Timer readTimer = Stats.start(Phase.READ);
+        boolean eof = fill(channel, buf);
+        Stats.stop(readTimer);
+        buf.flip();
+        final byte[] head = new byte[Math.min(4, buf.remaining())];
+        buf.duplicate().get(head);
+        final Stats.Timer binaryTimer = Stats.start(Phase.STRUCTURAL);
+        final String binary = BinaryClassifier.classify(new Sample(Arrays.copyOf(buf.array(), buf.remaining()), !eof));
+        Stats.stop(binaryTimer);
+        if (null != binary) {
+            Stats.add(Counter.BYTES_READ, buf.remaining());
+            final ReadableByteChannel firstChunk = Channels.newChannel(new ByteArrayInputStream(buf.array(), 0, buf.remaining()));
+            return finishBinary(_logger, _options, binary, null, null, _out, new ReadableByteChannel[] { firstChunk, channel });
+        }
+        final ByteArrayOutputStream spool = ConvertMode.STDOUT == _options.convertMode ? new ByteArrayOutputStream() : null;
+        final CcsidConfidenceScorer structuralTracker = new CcsidConfidenceScorer();
+        String structural = null;
+        if (eof && !startsWithBom(head)) {
+            // Everything fit in the first chunk, so the structural checks can see all of it
+            final Stats.Timer timer = Stats.start(Phase.STRUCTURAL);
+            structural = structuralTracker.addStructuralGuess(buf.array(), buf.remaining(), false);
+            Stats.stop(timer);
+            if (null != structural) {
+                Stats.add(Counter.STRUCTURAL_GUESSES, 1);
+                if (allowsStructuralGuess(_options)) {
+                    Stats.add(Counter.BYTES_READ, buf.remaining());
+                    if (null != spool) {
+                        spool.write(buf.array(), buf.position(), buf.remaining());
+                    }
+                    return finishStream(_logger, structuralTracker, _options, _out, spool, channel);
                 }
             }
-            if (-1 == topGuess) {
-                throw new RuntimeException("ERROR: Unable to guess CCSID!");
+        }
+
+        if (allowsStructuralGuess(_options) && null != getBomEncoding(head)) {
+            // a BOM settles the top guess without looking any further
+            final CcsidConfidenceScorer tracker = new CcsidConfidenceScorer();
+            tracker.addKnownCharset(getBomEncoding(head));
+            Stats.add(Counter.BYTES_READ, buf.remaining());
+            Stats.add(Counter.STRUCTURAL_GUESSES, 1);
+            if (null != spool) {
+                spool.write(buf.array(), buf.position(), buf.remaining());
             }
-            logger.println_verbose("top guess was " + topGuess);
-            if (autofix) {
-                setCcsidTag(logger, new File(fileStr), topGuess);
+            return finishStream(_logger, tracker, _options, _out, spool, channel);
+        }
+        final LinkedHashSet<String> ccsidList = getPreferenceList(_logger, null);
+        if (null != structural) {
+            // already on top; the rest are only scored to fill out the guesses shown
+            removeCharset(ccsidList, structural);
+        }
+        final CcsidConfidenceScorer bomTracker = new CcsidConfidenceScorer();
+        final String bomEncoding = applyBom(head, ccsidList, bomTracker);
+        // The family is judged from the first chunk alone, since the candidates have to be known before scoring starts
+        final LinkedList<String> candidates = filterByFamily(_logger, _options, buf.array(), buf.remaining(), toCandidates(ccsidList), null);
+        // Reading and scoring are interleaved here, so the whole loop counts as scoring
+        final Stats.Timer timer = Stats.start(Phase.SCORE);
+        final StreamingDetector detector = new StreamingDetector(candidates, null == bomEncoding ? 1.00 : 0.50, _options.weights);
+        if (null != spool) {
+            spool.write(buf.array(), buf.position(), buf.remaining());
+        }
+        detector.update(buf);
+        while (!eof && detector.getBytesSeen() < _options.sampleSize) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), _options.sampleSize - detector.getBytesSeen()));
+            eof = -1 == channel.read(buf);
+            buf.flip();
+            if (null != spool) {
+                spool.write(buf.array(), buf.position(), buf.remaining());
             }
-            if (ConvertMode.NONE != convertMode) {
-                if (1208 == topGuess) {
-                    logger.println("File already looks like UTF-8");
-                } else {
-                    convertFileToUTF8(logger, convertMode, topGuess, new File(fileStr));
+            detector.update(buf);
+        }
+        if (eof) {
+            detector.finish();
+        }
+        final CcsidConfidenceScorer tracker = detector.getRanking(structuralTracker);
+        Stats.stop(timer);
+        Stats.add(Counter.BYTES_READ, detector.getBytesSeen());
+        Stats.add(Counter.CHARSETS_SCORED, candidates.size());
+        if (null != bomEncoding) {
+            tracker.addKnownCharset(bomEncoding);
+        }
+        return finishStream(_logger, tracker, _options, _out, spool, channel);
+    }
+
+    /**
+     * Prints the results for a scored stream and, if the bytes read for detection were spooled, converts them and the
+     * rest of the stream to standard output.
+     *
+     * @return the top guess
+     */
+    private static int finishStream(final AppLogger _logger, final CcsidConfidenceScorer _tracker, final Options _options, final PrintStream _out, final ByteArrayOutputStream _spool, final ReadableByteChannel _rest) throws IOException {
+        final int topGuess = printResults(_tracker, _options, null, _out);
+        _logger.println_verbose("top guess was " + topGuess);
+        if (null != _spool) {
+            convertToStdout(CcsidUtils.ccsidToEncoding(topGuess, true), ByteBuffer.wrap(_spool.toByteArray()), _rest);
+        }
+        return topGuess;
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the channel hits end-of-stream.
+     *
+     * @return whether end-of-stream was reached
+     */
+    private static boolean fill(final ReadableByteChannel _channel, final ByteBuffer _buf) throws IOException {
+        while (_buf.hasRemaining()) {
+            if (-1 == _channel.read(_buf)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the list of charsets to consider, in order of preference: the file's current tag (if any), then the
+     * preferred list, then everything else the JVM supports.
+     *
+     * @param _taggedEncoding
+     *            the encoding the file is currently tagged with, or <tt>null</tt>
+     */
+    private static LinkedHashSet<String> getPreferenceList(final AppLogger _logger, final String _taggedEncoding) {
+        final LinkedHashSet<String> ccsidList = new LinkedHashSet<String>();
+        if (StringUtils.isNonEmpty(_taggedEncoding)) {
+            ccsidList.add(_taggedEncoding);
+        }
+        final Stats.Timer timer = Stats.start(Phase.CHARSET_ENUMERATION);
+        ccsidList.addAll(Arrays.asList(PREFERRED_CCSIDS));
+        ccsidList.addAll(SupportedCharsetsHolder.NAMES);
+        Stats.stop(timer);
+
+        _logger.println_verbose("CCSID preference list ---> " + StringUtils.arrayToSpaceSeparatedString(ccsidList.toArray(new String[0])));
+        return ccsidList;
+    }
+
+    /**
+     * If the sample starts with a byte-order mark, adds its encoding as a known charset and removes it (and its
+     * aliases) from the preference list.
+     *
+     * @return the BOM's encoding, or <tt>null</tt> if there's no BOM
+     */
+    private static String applyBom(final byte[] _sampleData, final Collection<String> _ccsidList, final CcsidConfidenceScorer _tracker) {
+        final String bomEncoding = getBomEncoding(_sampleData);
+        if ("UTF8".equals(bomEncoding)) {
+            _ccsidList.remove("UTF-8");
+        }
+        if (null != bomEncoding) {
+            _tracker.addKnownCharset(bomEncoding);
+            removeCharset(_ccsidList, bomEncoding);
+        }
+        return bomEncoding;
+    }
+
+    /**
+     * Removes a charset, under any of its names, from the preference list.
+     */
+    private static void removeCharset(final Collection<String> _ccsidList, final String _encoding) {
+        _ccsidList.remove(_encoding);
+        final Charset cs = Charset.forName(_encoding);
+        _ccsidList.remove(cs.name());
+        for (final String alias : cs.aliases()) {
+            _ccsidList.remove(alias);
+        }
+    }
+
+    /**
+     * @return the encoding named by the sample's byte-order mark, or <tt>null</tt> if there's no BOM
+     */
+    private static String getBomEncoding(final byte[] _sampleData) {
+        if (startsWith(_sampleData, UTF8_BOM)) {
+            return "UTF8";
+        } else if (startsWith(_sampleData, UTF16BE_BOM)) {
+            return "UTF-16BE";
+        } else if (startsWith(_sampleData, UTF16LE_BOM)) {
+            return "UTF-16LE";
+        } else if (startsWith(_sampleData, UTF32LE_BOM)) {
+            return "UTF-32LE";
+        } else if (startsWith(_sampleData, UTF32BE_BOM)) {
+            return "UTF-32BE";
+        }
+        return null;
+    }
+
+    /**
+     * Narrows the candidates down to the family (EBCDIC, ASCII-based, or UTF-16/UTF-32) that the sample clearly belongs
+     * to, if it clearly belongs to one. Charsets that fit no family, and the encoding the file is tagged with, are
+     * always kept. Like staged scoring, this is skipped with <tt>--show=all</tt>.
+     */
+    private static LinkedList<String> filterByFamily(final AppLogger _logger, final Options _options, final byte[] _data, final int _len, final LinkedList<String> _candidates, final String _taggedEncoding) {
+        if (SHOW_ALL == _options.showNum) {
+            return _candidates;
+        }
+        final Stats.Timer timer = Stats.start(Phase.CHARSET_ENUMERATION);
+        final CharsetFamily family = CharsetFamily.classify(_data, _len);
+        if (null == family) {
+            Stats.stop(timer);
+            return _candidates;
+        }
+        final LinkedList<String> candidates = new LinkedList<String>();
+        for (final String charset : _candidates) {
+            final CharsetFamily candidateFamily = CharsetFamily.of(charset);
+            if (family == candidateFamily || CharsetFamily.OTHER == candidateFamily || charset.equals(_taggedEncoding)) {
+                candidates.add(charset);
+            }
+        }
+        Stats.stop(timer);
+        _logger.printfln_verbose("Sample looks like %s data; scoring %d of %d candidates", family, candidates.size(), _candidates.size());
+        return candidates;
+    }
+
+    /**
+     * Filters the preference list down to the charsets that have a CCSID.
+     */
+    private static LinkedList<String> toCandidates(final Collection<String> _ccsidList) {
+        final Stats.Timer timer = Stats.start(Phase.CHARSET_ENUMERATION);
+        final LinkedList<String> candidates = new LinkedList<String>();
+        for (final String charset : _ccsidList) {
+            if (-1 == CcsidUtils.unknownStringToCCSID(charset)) {
+                continue;
+            }
+            candidates.add(charset);
+        }
+        Stats.stop(timer);
+        return candidates;
+    }
+
+    private static int printResults(final CcsidConfidenceScorer _tracker, final Options _options, final String _displayName, final PrintStream _out) {
+        int printed = 0;
+        int topGuess = -1;
+        for (final Entry<Confidence, LinkedList<String>> entry : _tracker.getSortedData().entrySet()) {
+            final LinkedList<String> charsets = entry.getValue();
+            final Confidence confidence = entry.getKey();
+            if (confidence.getConfidence() <= 0.0003) {
+                break;
+            }
+            for (final String charset : charsets) {
+                if (printed >= _options.showNum && _options.showNum >= 0) {
+                    break;
                 }
+                final int ccsid = CcsidUtils.unknownStringToCCSID(charset);
+                _options.outputFormat.print(_out, _displayName, charset, 100 * confidence.getConfidence(), ccsid);
+                if (-1 == topGuess) {
+                    topGuess = ccsid;
+                }
+                printed++;
+            }
+            if (SHOW_TIES_ONLY == _options.showNum) {
+                break;
             }
+        }
+        if (-1 == topGuess) {
+            throw new RuntimeException("ERROR: Unable to guess CCSID!");
+        }
+        return topGuess;
+    }
 
-        } catch (final Exception e) {
-            logger.printExceptionStack_verbose(e);
-            logger.println_err(e.getLocalizedMessage());
+    /**
+     * Prints the statistics to standard error (standard output may be carrying converted data).
+     *
+     * @param _format
+     *            <tt>text</tt> or <tt>json</tt>, or <tt>null</tt> to print nothing
+     */
+    private static void printStats(final String _format) {
+        if ("json".equals(_format)) {
+            Stats.printJson(System.err);
+        } else if (null != _format) {
+            Stats.printSummary(System.err);
         }
     }
 
     private static void printUsageAndExit() {
         // @formatter:off
-        final String autoFixOpt = isIBMi()?"        --autofix            automatically and unapologetically change the CCSID tag of the file\n                             to match the top guess for the file's contents (IBM i only)\n":"";
-        final String usage = "Usage: java -jar ccsidguesser.jar  [options] <file>\n"
+        final String usage = "Usage: java -jar ccsidguesser.jar  [options] <file/dir/glob>... (or '-' for standard input)\n"
                                 + "\n"
                                 + "    Valid options include:\n"
                                 + "        --show=top/topN/all: how many CCSID guesses to show (default is 'top1'), which shows the\n"
@@ -304,18 +1174,65 @@ public class CcsidGuesser {
                                 + "                             of very-near guesses.\n"
                                 + "        --format=<format>:   output format (default is 'ccsid'). See valid formats below.\n"
                                 + "        --convert=<mode>:    convert file to UTF-8 (default is 'none'). See valid modes below.\n"
-                                + autoFixOpt
+                                + "        --convert-threads=<n>: convert large files in chunks, on <n> threads (default is 1)\n"
+                                + "        --convert-memory=<mb>: roughly the most memory that --convert-threads may use for chunks\n"
+                                + "                             waiting to be written, in megabytes (default is 256)\n"
+                                + "        --autofix            automatically and unapologetically change the CCSID tag of the file\n"
+                                + "                             to match the top guess for the file's contents (IBM i, or --tag-store)\n"
+                                + "        --tag-store=<file>:  keep CCSID tags in <file> instead of the file system (for trying out\n"
+                                + "                             --autofix, and tag-based preference, off IBM i)\n"
+                                + "        --staged             score candidates on growing prefixes of the sample, dropping hopeless\n"
+                                + "                             ones early (much faster, but approximate: a candidate that looks\n"
+                                + "                             hopeless early on is never scored on the rest; ignored with --show=all)\n"
+                                + "        --threads=<n>:       number of threads used to score candidate encodings (default is 1)\n"
+                                + "        --sample-size=<kb>:  how much of the file to look at, in kilobytes (default is 128)\n"
+                                + "        --archives           look inside zip/jar, tar, and gzip (including .tar.gz) files, and report\n"
+                                + "                             each member as <archive>!<member> (members are never tagged or converted)\n"
+                                + "        --segments[=<bytes>] report the byte ranges of a file that are in different encodings, scored\n"
+                                + "                             over a sliding window of <bytes> (default is 4096); --convert then\n"
+                                + "                             converts each range from its own encoding\n"
+                                + "        --weights=<file>:    load a custom character weight profile (lines like '0E00-0E7F=1.0')\n"
+                                + "        --dump-ccsid-index   print the charset name/CCSID lookup table and exit (for diagnostics)\n"
+                                + "        --sampling=<mode>:   which parts of the file are sampled (default is 'head'). See valid modes below.\n"
+                                + "        --cache=<file>:      remember results in <file>, and reuse them for files that haven't changed\n"
+                                + "                             (or whose sample matches one seen before)\n"
+                                + "        --server=<port>      stay resident and answer requests from --client on the given loopback\n"
+                                + "                             port (--jobs sets how many are served at once)\n"
+                                + "        --client=<port>      send the request to a --server on the given port instead of running it\n"
+                                + "                             here (same output as running it here)\n"
+                                + "        --watch=<dir>        keep watching <dir> (and everything under it), and process each file that\n"
+                                + "                             arrives or changes once it stops changing, with --autofix and/or --convert\n"
+                                + "                             (--jobs sets how many are processed at once)\n"
+                                + "        --watch-settle=<ms>: how long a file has to go unchanged before --watch processes it\n"
+                                + "                             (default is 1000)\n"
+                                + "        --stats[=json]       when done, print counters and the time spent in each phase to standard\n"
+                                + "                             error (as JSON with --stats=json)\n"
+                                + "        --file-list=<file>:  read the files to process from <file>, one per line ('-' for stdin)\n"
+                                + "        --jobs=<n>:          number of files to process in parallel when given more than one file,\n"
+                                + "                             a directory, or a glob (default is the number of processors)\n"
+                                + "        --ordered            when processing more than one file, print results in the order the files\n"
+                                + "                             were found rather than in the order they finish\n"
                                 + "\n"
                                 + "    Valid formats include:\n"
                                 + "        ccsid:        Show the CCSID only\n"
                                 + "        enc:          Show the CCSID and encoding name\n"
+                                + "        line:         Tab-separated file name, CCSID, encoding name, and confidence (for scripts)\n"
                                // + "        confidence:   Show the CCSID, encoding name, and confidence level\n"
                                + "\n"
+                               + "    Valid sampling modes include:\n"
+                               + "         head:         The start of the file\n"
+                               + "         spread:       The start, several blocks from the middle, and the end of the file\n"
+                               + "\n"
                                + "    Valid convert modes include:\n"
                                + "         none :        perform no conversion\n"
                                + "         inplace:      Convert the file in-place (no backup is created, use at your own risk!)\n"
                                + "         dotbak:       Convert the file in-place (creates a .bak with the old contents)\n"
                                + "         dotutf8:      Create a new file that is UTF-8 (extension will be .utf8)\n"
+                               + "         stdout:       Write the UTF-8 contents to standard output, and the guess to standard error\n"
+                               + "                       (works with standard input too, as a filter: ... | ccsidguesser - --convert=stdout)\n"
+                               + "\n"
+                               + "    Binary files (images, archives, object code, ...) are reported as CCSID 65535 ('binary') without\n"
+                               + "    being scored, and are never tagged or converted. If any input was binary, the exit code is 3.\n"
                                 + "\n"
                                 ;
         // @formatter:on
@@ -323,14 +1240,20 @@ public class CcsidGuesser {
         System.exit(-1);
     }
 
-    private static void setCcsidTag(final AppLogger _logger, final File _file, final int _ccsid) throws IOException, InterruptedException {
-        if (!isIBMi() || 0 > _ccsid) {
+    /**
+     * Queues a change to the file's CCSID tag. The change is made in the background; see {@link CcsidTagStore}.
+     */
+    private static void setCcsidTag(final AppLogger _logger, final CcsidTagStore _tagStore, final File _file, final int _ccsid) throws IOException {
+        if (null == _tagStore || 0 > _ccsid) {
             _logger.println_verbose("Skipping setting of CCSID tag");
+            return;
         }
-        _logger.printfln_verbose("Trying to set CCSID of file '%s' to %d", _file.getName(), _ccsid);
-        final Process p = Runtime.getRuntime().exec(new String[] { "/QOpenSys/usr/bin/setccsid", "" + _ccsid, _file.getAbsolutePath() });
-        ProcessLauncher.pipeStreamsToCurrentProcess("SETCCSID", p, _logger);
-        _logger.println_verbose("CCSID set rc=" + p.waitFor());
+        _logger.printfln_verbose("Queueing CCSID %d for file '%s'", _ccsid, _file.getName());
+        _tagStore.setCcsid(_file, _ccsid);
+    }
+
+    static boolean startsWithBom(final byte[] _b) {
+        return startsWith(_b, UTF8_BOM) || startsWith(_b, UTF16BE_BOM) || startsWith(_b, UTF16LE_BOM) || startsWith(_b, UTF32LE_BOM) || startsWith(_b, UTF32BE_BOM);
     }
 
     private static boolean startsWith(final byte[] _b, final byte[] _comp) {
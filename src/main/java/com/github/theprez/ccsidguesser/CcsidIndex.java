@@ -0,0 +1,118 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ibm.as400.access.ConversionMaps;
+
+/**
+ * An index of charset names and aliases (and toolbox encoding names) to CCSIDs, and of CCSIDs to the Java charsets
+ * they map back to. It holds exactly what the slower lookups in {@link CcsidUtils} would compute, including negative
+ * answers, so that repeat lookups are a single hash probe with no exceptions thrown or caught.
+ * <p>
+ * Entries are computed the first time they're asked for, so a run that only ever looks up a handful of names never
+ * pays for enumerating every charset the JVM (and the toolbox) knows about. Only {@link #dump(PrintStream)} does that.
+ */
+final class CcsidIndex {
+
+    private static final CcsidIndex INDEX = new CcsidIndex();
+
+    /** Stands in for "no charset", since the maps can't hold <tt>null</tt> */
+    private static final Object NO_CHARSET = new Object();
+
+    static CcsidIndex get() {
+        return INDEX;
+    }
+
+    private final ConcurrentHashMap<Integer, Object> m_ccsidToCharset = new ConcurrentHashMap<Integer, Object>();
+    private final ConcurrentHashMap<Integer, Object> m_ccsidToEncoding = new ConcurrentHashMap<Integer, Object>();
+    private final ConcurrentHashMap<String, Integer> m_nameToCcsid = new ConcurrentHashMap<String, Integer>();
+
+    private CcsidIndex() {
+    }
+
+    /**
+     * Prints the whole index, for diagnostics. This fills in every entry first.
+     */
+    void dump(final PrintStream _out) {
+        final Set<String> names = new LinkedHashSet<String>();
+        for (final Charset cs : Charset.availableCharsets().values()) {
+            names.add(cs.name());
+            names.addAll(cs.aliases());
+        }
+        try {
+            for (final Object encoding : ConversionMaps.encodingCcsid_.keySet()) {
+                names.add(encoding.toString());
+            }
+        } catch (final Exception e) {
+            // the names from the JVM are the important ones; carry on without the toolbox's
+        }
+        final Map<Integer, Charset> charsets = new TreeMap<Integer, Charset>();
+        _out.println("# name -> CCSID");
+        for (final String name : new TreeSet<String>(names)) {
+            final int ccsid = lookupCcsid(name);
+            _out.println(name + "\t" + ccsid);
+            final Charset cs = 0 < ccsid ? lookupCharset(ccsid) : null;
+            if (null != cs) {
+                charsets.put(ccsid, cs);
+            }
+        }
+        _out.println("# CCSID -> charset (encoding)");
+        for (final Entry<Integer, Charset> entry : charsets.entrySet()) {
+            _out.println(entry.getKey() + "\t" + entry.getValue().name() + "\t" + lookupEncoding(entry.getKey()));
+        }
+    }
+
+    /**
+     * @return the charset for the CCSID, or <tt>null</tt> if it has none
+     */
+    Charset lookupCharset(final int _ccsid) {
+        Object cs = m_ccsidToCharset.get(_ccsid);
+        if (null == cs) {
+            // not computeIfAbsent(), since the computation may come back through here
+            try {
+                cs = CcsidUtils.computeCcsidToCharset(_ccsid);
+            } catch (final Exception e) {
+                cs = NO_CHARSET;
+            }
+            m_ccsidToCharset.putIfAbsent(_ccsid, cs);
+        }
+        return NO_CHARSET == cs ? null : (Charset) cs;
+    }
+
+    /**
+     * @return the CCSID for the name, or <tt>-1</tt> if it has none
+     */
+    Integer lookupCcsid(final String _name) {
+        Integer ccsid = m_nameToCcsid.get(_name);
+        if (null == ccsid) {
+            ccsid = CcsidUtils.computeUnknownStringToCCSID(_name);
+            m_nameToCcsid.putIfAbsent(_name, ccsid);
+        }
+        return ccsid;
+    }
+
+    /**
+     * @return the Java encoding name for the CCSID, or <tt>null</tt> if it has no charset
+     */
+    String lookupEncoding(final int _ccsid) {
+        Object encoding = m_ccsidToEncoding.get(_ccsid);
+        if (null == encoding) {
+            final Charset cs = lookupCharset(_ccsid);
+            try {
+                encoding = null == cs ? NO_CHARSET : CcsidUtils.charsetToEncoding(cs);
+            } catch (final Exception e) {
+                encoding = NO_CHARSET;
+            }
+            m_ccsidToEncoding.putIfAbsent(_ccsid, encoding);
+        }
+        return NO_CHARSET == encoding ? null : (String) encoding;
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads and writes the CCSID tags of files. Writes may be queued and applied in batches on another thread, so a tag
+ * that was just set isn't necessarily on disk until {@link #flush()} (or {@link #close()}) returns. Reads always see
+ * the store's own queued writes.
+ */
+public interface CcsidTagStore extends Closeable {
+
+    /**
+     * Applies any queued writes and closes the store.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Waits for every queued write to be applied.
+     *
+     * @throws IOException
+     *             if any write failed since the last flush
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return the file's CCSID tag, or -1 if it isn't tagged (or the tag can't be read)
+     */
+    int getCcsid(File _file) throws IOException;
+
+    /**
+     * Queues a change to a file's CCSID tag. If the same file is queued more than once, the last tag wins.
+     */
+    void setCcsid(File _file, int _ccsid) throws IOException;
+}
@@ -5,6 +5,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
@@ -22,18 +23,22 @@ public class CcsidUtils {
      * <ul>
      * <li>All keys are lowercased, so lookups are expected to be done with lowercase strings. This is because the JDK names don't always case-match Toolbox names.
      * <li>The values are integers. The toolbox map uses string representations of integers.
-     * <li>We can easily add more as we discover them. The toolbox, unsurprisingly, misses some (see comment in code in static initializer for that list)
+     * <li>We can easily add more as we discover them. The toolbox, unsurprisingly, misses some (see comment in code in loadToolboxEncodingMap() for that list)
      * </ul>
      */
-    private static final Map<String, Integer> g_toolboxEncodingMap;
-    static {
-        g_toolboxEncodingMap = new Hashtable<>();
-        // load the toolbox's lookup table into our hashmap with type-safety (and do it on static init so the reflection is only needed once)
+    private static class ToolboxMapHolder {
+        static final Map<String, Integer> MAP = loadToolboxEncodingMap();
+    }
+
+    private static Map<String, Integer> loadToolboxEncodingMap() {
+        final Map<String, Integer> map = new Hashtable<>();
+        // load the toolbox's lookup table into our hashmap with type-safety (and do it on first use so the reflection is only needed once,
+        // and only by runs that actually get this far in a lookup)
         try {
             final Map<?, ?> cpMap = ConversionMaps.encodingCcsid_;
             for (final Entry<?, ?> entry : cpMap.entrySet()) {
                 try {
-                    g_toolboxEncodingMap.put(entry.getKey().toString().toLowerCase(), Integer.valueOf(entry.getValue().toString()));
+                    map.put(entry.getKey().toString().toLowerCase(), Integer.valueOf(entry.getValue().toString()));
                 } catch (final NumberFormatException _e) {
                     // if it happens we don't care so not even bothering to log, move along, nothing to see here
                 }
@@ -107,25 +112,37 @@ public class CcsidUtils {
         // Found CCSID for 168/227 charsets
         // (when running Java 6)
 
-        g_toolboxEncodingMap.put("CESU-8".toLowerCase(), 9400);
-        g_toolboxEncodingMap.put("UTF-16LE".toLowerCase(), 1202);
-        g_toolboxEncodingMap.put("UTF-16BE".toLowerCase(), 1200);
-        g_toolboxEncodingMap.put("UTF-16".toLowerCase(), 1204);
-        g_toolboxEncodingMap.put("UTF-32".toLowerCase(), 1236);
-        g_toolboxEncodingMap.put("UTF-32BE".toLowerCase(), 1232);
-        g_toolboxEncodingMap.put("UTF-32LE".toLowerCase(), 1234);
-        g_toolboxEncodingMap.put("UTF-32BE-bom".toLowerCase(), 1232);
-        g_toolboxEncodingMap.put("UTF-32LE-bom".toLowerCase(), 1234);
-        g_toolboxEncodingMap.put("x-EUC-TW".toLowerCase(), 964);
-        g_toolboxEncodingMap.put("x-EUC-KR".toLowerCase(), 970);
-        g_toolboxEncodingMap.put("Big5-HKSCS".toLowerCase(), 1375);
-        g_toolboxEncodingMap.put("Big5-HKSCS-2001".toLowerCase(), 1375);
-        g_toolboxEncodingMap.put("x-windows-iso2022jp".toLowerCase(), 5054);
-        g_toolboxEncodingMap.put("x-euc-jp-linux".toLowerCase(), 954);
-        g_toolboxEncodingMap.put("x-euc-jp-Open".toLowerCase(), 954);
+        map.put("CESU-8".toLowerCase(), 9400);
+        map.put("UTF-16LE".toLowerCase(), 1202);
+        map.put("UTF-16BE".toLowerCase(), 1200);
+        map.put("UTF-16".toLowerCase(), 1204);
+        map.put("UTF-32".toLowerCase(), 1236);
+        map.put("UTF-32BE".toLowerCase(), 1232);
+        map.put("UTF-32LE".toLowerCase(), 1234);
+        map.put("UTF-32BE-bom".toLowerCase(), 1232);
+        map.put("UTF-32LE-bom".toLowerCase(), 1234);
+        map.put("x-EUC-TW".toLowerCase(), 964);
+        map.put("x-EUC-KR".toLowerCase(), 970);
+        map.put("Big5-HKSCS".toLowerCase(), 1375);
+        map.put("Big5-HKSCS-2001".toLowerCase(), 1375);
+        map.put("x-windows-iso2022jp".toLowerCase(), 5054);
+        map.put("x-euc-jp-linux".toLowerCase(), 954);
+        map.put("x-euc-jp-Open".toLowerCase(), 954);
+        return map;
     }
 
     public static Charset ccsidToCharset(final int _ccsid) throws UnsupportedCharsetException {
+        final Charset indexed = CcsidIndex.get().lookupCharset(_ccsid);
+        if (null != indexed) {
+            return indexed;
+        }
+        return computeCcsidToCharset(_ccsid);
+    }
+
+    /**
+     * The uncached version of {@link #ccsidToCharset(int)}, used to build the {@link CcsidIndex}.
+     */
+    static Charset computeCcsidToCharset(final int _ccsid) throws UnsupportedCharsetException {
         try {
             return Charset.forName(ccsidToEncodingViaToolboxAndFallback(_ccsid));
         } catch (final Exception e) {
@@ -153,6 +170,10 @@ public class CcsidUtils {
      *             when InputStream close() fails
      */
     public static String ccsidToEncoding(final int _ccsid, final boolean _fallbackToGenericCpXXXX) throws UnsupportedCharsetException, IOException {
+        final String indexed = CcsidIndex.get().lookupEncoding(_ccsid);
+        if (null != indexed) {
+            return indexed;
+        }
         try {
             // this weird two-step guarantees that the JVM understands the returned value
             return charsetToEncoding(ccsidToCharset(Integer.valueOf(_ccsid)));
@@ -237,7 +258,7 @@ public class CcsidUtils {
         } catch (final NumberFormatException _e) {
             // if it happens we'll fall thru and try the lookup so no log here
         }
-        final Integer lookedUp = g_toolboxEncodingMap.get(_encoding.toLowerCase()); // case-insensitive. All values of the map are lowercased
+        final Integer lookedUp = ToolboxMapHolder.MAP.get(_encoding.toLowerCase()); // case-insensitive. All values of the map are lowercased
         return null == lookedUp ? -1 : lookedUp;
     }
 
@@ -254,7 +275,28 @@ public class CcsidUtils {
         }
     }
 
+    /**
+     * Prints the charset name/CCSID index, for diagnostics.
+     */
+    public static void dumpIndex(final PrintStream _out) {
+        CcsidIndex.get().dump(_out);
+    }
+
     public static int unknownStringToCCSID(final String _enc) {
+        if (null != _enc) {
+            final Integer indexed = CcsidIndex.get().lookupCcsid(_enc);
+            if (null != indexed) {
+                return indexed;
+            }
+        }
+        return computeUnknownStringToCCSID(_enc);
+    }
+
+    /**
+     * The uncached version of {@link #unknownStringToCCSID(String)}, used to build the {@link CcsidIndex} and for
+     * strings that aren't in it.
+     */
+    static int computeUnknownStringToCCSID(final String _enc) {
         try {
             if (0 == _enc.trim().length()) {
                 throw new RuntimeException(new UnsupportedEncodingException());
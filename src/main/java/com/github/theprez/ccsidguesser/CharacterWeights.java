@@ -0,0 +1,231 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A table of how "valid" each UTF-16 code unit looks when it shows up in decoded text. This is what the confidence
+ * score is made of: the average weight of the characters a sample decodes to.
+ * <p>
+ * The table is stored as one class byte per code unit plus a small array of per-class weights, so a lookup is an
+ * index into a 64K array (and a tiny, always-cached one) with no branching. Sites can build their own profile with
+ * {@link Builder} or {@link #load(File)} and hand it to {@link CcsidConfidenceScorer#setCharacterWeights(CharacterWeights)}.
+ */
+public final class CharacterWeights {
+
+    public static class Builder {
+        private final double[] m_weights = new double[65536];
+
+        private Builder(final CharacterWeights _base) {
+            for (int c = 0; c < 65536; ++c) {
+                m_weights[c] = _base.getWeight((char) c);
+            }
+        }
+
+        /**
+         * @throws IllegalStateException
+         *             if the profile uses more than 256 distinct weights
+         */
+        public CharacterWeights build() {
+            final Map<Double, Integer> classes = new LinkedHashMap<Double, Integer>();
+            final byte[] classOf = new byte[65536];
+            for (int c = 0; c < 65536; ++c) {
+                Integer cls = classes.get(m_weights[c]);
+                if (null == cls) {
+                    if (256 <= classes.size()) {
+                        throw new IllegalStateException("Too many distinct character weights (256 max)");
+                    }
+                    cls = classes.size();
+                    classes.put(m_weights[c], cls);
+                }
+                classOf[c] = (byte) (int) cls;
+            }
+            final double[] classWeights = new double[classes.size()];
+            for (final Map.Entry<Double, Integer> entry : classes.entrySet()) {
+                classWeights[entry.getValue()] = entry.getKey();
+            }
+            return new CharacterWeights(classOf, classWeights);
+        }
+
+        /**
+         * Sets the weight of every code unit from <tt>_first</tt> to <tt>_last</tt>, inclusive.
+         */
+        public Builder setWeight(final int _first, final int _last, final double _weight) {
+            for (int c = Math.max(0, _first); c <= Math.min(0xFFFF, _last); ++c) {
+                m_weights[c] = _weight;
+            }
+            return this;
+        }
+    }
+
+    public static final double INVALID = 0.0;
+    public static final double VALID = 1.0;
+    public static final double WEAK = 0.1;
+
+    private static class DefaultHolder {
+        static final CharacterWeights DEFAULT = buildDefault();
+    }
+
+    private static CharacterWeights buildDefault() {
+        final byte[] classOf = new byte[65536];
+        final double[] classWeights = { INVALID, WEAK, VALID };
+        for (int c = 0; c < 65536; ++c) {
+            final double weight = computeDefaultWeight((char) c);
+            classOf[c] = (byte) (VALID == weight ? 2 : WEAK == weight ? 1 : 0);
+        }
+        // A surrogate code unit is only half of a character, so neither half means much on its own. Each half counts
+        // as a weak hit (as Character.getType() reports SURROGATE rather than UNASSIGNED for them), meaning a valid
+        // pair contributes two weak hits and a lone surrogate still counts against the charset relative to real text.
+        for (int c = Character.MIN_SURROGATE; c <= Character.MAX_SURROGATE; ++c) {
+            classOf[c] = 1;
+        }
+        return new CharacterWeights(classOf, classWeights);
+    }
+
+    private static double computeDefaultWeight(final char _c) {
+        if ('\0' == _c) {
+            return VALID;
+        }
+
+        if (Character.isAlphabetic(_c)) {
+            return VALID;
+        }
+        if (Character.isWhitespace(_c)) {
+            return VALID;
+        }
+        if (Character.isDigit(_c)) {
+            return VALID;
+        }
+
+        final int type = Character.getType(_c);
+        switch (type) {
+            case Character.OTHER_PUNCTUATION:
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.CURRENCY_SYMBOL:
+            case Character.OTHER_LETTER:
+            case Character.OTHER_NUMBER:
+                // case Character.OTHER_SYMBOL:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.MATH_SYMBOL:
+            case Character.PARAGRAPH_SEPARATOR:
+            case Character.SPACE_SEPARATOR:
+            case Character.MODIFIER_LETTER:
+            case Character.MODIFIER_SYMBOL:
+                return VALID;
+        }
+        if (type != Character.UNASSIGNED) {
+            return WEAK;
+        }
+        return INVALID;
+    }
+
+    /**
+     * Starts a new profile based on the given one.
+     */
+    public static Builder builder(final CharacterWeights _base) {
+        return new Builder(_base);
+    }
+
+    /**
+     * The built-in profile: letters, digits, whitespace, and common punctuation/symbols are valid; other assigned
+     * characters are weak; unassigned code points are invalid.
+     */
+    public static CharacterWeights getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Loads a profile from a file. The profile starts from the default weights; each non-blank, non-comment
+     * (<tt>#</tt>) line then overrides a code unit or range, in hex, like <tt>00A4=0.0</tt> or <tt>0E00-0E7F=1.0</tt>.
+     */
+    public static CharacterWeights load(final File _file) throws IOException {
+        final Builder builder = builder(getDefault());
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"))) {
+            String line;
+            int lineNum = 0;
+            while (null != (line = br.readLine())) {
+                lineNum++;
+                line = line.replaceFirst("#.*", "").trim();
+                if (0 == line.length()) {
+                    continue;
+                }
+                try {
+                    final String[] keyAndValue = line.split("=", 2);
+                    final String[] range = keyAndValue[0].trim().split("-", 2);
+                    final int first = Integer.parseInt(range[0].trim(), 16);
+                    final int last = 1 == range.length ? first : Integer.parseInt(range[1].trim(), 16);
+                    builder.setWeight(first, last, Double.parseDouble(keyAndValue[1].trim()));
+                } catch (final RuntimeException e) {
+                    throw new IOException("Invalid weight on line " + lineNum + " of " + _file + ": " + line);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private final byte[] m_classOf;
+    private final double[] m_classWeights;
+
+    private CharacterWeights(final byte[] _classOf, final double[] _classWeights) {
+        m_classOf = _classOf;
+        m_classWeights = _classWeights;
+    }
+
+    /**
+     * A hash of the whole profile. Two profiles with the same fingerprint score every sample the same way (barring a
+     * collision), so results scored under one can be reused under the other.
+     */
+    public long fingerprint() {
+        long h = 1125899906842597L;
+        for (int c = 0; c < 65536; ++c) {
+            h = 31 * h + Double.doubleToLongBits(getWeight((char) c));
+        }
+        return h;
+    }
+
+    /**
+     * The number of hits (sum of character validity weights) for characters tallied by weight class, as with
+     * {@link #newTally()} and {@link #getWeightClass(char)}.
+     * <p>
+     * Every scoring path totals its hits this way, rather than adding up weights as it goes, so the total doesn't
+     * depend on the order the characters came in. Candidates whose characters tally the same get bit-for-bit the same
+     * score, and so tie, and are ranked by preference, no matter how each one was scored.
+     */
+    double getHits(final long[] _tally) {
+        double numHits = 0;
+        for (int cls = 0; cls < m_classWeights.length; ++cls) {
+            if (0 != _tally[cls]) {
+                numHits += _tally[cls] * m_classWeights[cls];
+            }
+        }
+        return numHits;
+    }
+
+    /**
+     * The weight of the given code unit.
+     */
+    public double getWeight(final char _c) {
+        return m_classWeights[m_classOf[_c] & 0xff];
+    }
+
+    /**
+     * The weight class of the given code unit: its index into a tally from {@link #newTally()}.
+     */
+    int getWeightClass(final char _c) {
+        return m_classOf[_c] & 0xff;
+    }
+
+    /**
+     * A tally of characters by weight class, all zero, for {@link #getHits(long[])}.
+     */
+    long[] newTally() {
+        return new long[m_classWeights.length];
+    }
+}
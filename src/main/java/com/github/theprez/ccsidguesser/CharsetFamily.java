@@ -0,0 +1,127 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The broad families that charsets fall into, told apart by where they put the space character. EBCDIC and
+ * ASCII-based data have very different byte statistics, so a quick look at a sample's spaces and line ends is usually
+ * enough to tell which family to score, and the other family can be skipped entirely.
+ */
+enum CharsetFamily {
+    /** ASCII and its supersets (ISO-8859-x, Windows code pages, UTF-8, the ASCII-based multi-byte charsets, ...) */
+    ASCII("ASCII-based"),
+    /** EBCDIC, single-byte and mixed */
+    EBCDIC("EBCDIC"),
+    /** UTF-16 and UTF-32 */
+    WIDE("UTF-16/UTF-32"),
+    /** Anything that doesn't decode a space in any of the above ways; never filtered out */
+    OTHER("other");
+
+    /** A sample needs at least this many spaces and line ends before it's classified at all */
+    private static final int MIN_EVIDENCE = 16;
+    /**
+     * How far ahead of the other family the leading one has to be, as a fraction of all the evidence. Below this, the
+     * sample is left unclassified and every family is scored.
+     */
+    private static final double MIN_MARGIN = 0.8;
+
+    private static final ConcurrentHashMap<String, CharsetFamily> s_families = new ConcurrentHashMap<String, CharsetFamily>();
+
+    /**
+     * Decides which family the sample belongs to, from how often the ASCII space and line feed turn up compared with
+     * the EBCDIC space, new line, and line feed.
+     *
+     * @return the family, or <tt>null</tt> if the sample doesn't say clearly enough
+     */
+    static CharsetFamily classify(final byte[] _data, final int _len) {
+        if (UnicodeValidator.MIN_WIDE_SAMPLE <= _len && null != UnicodeValidator.detectWide(_data, _len)) {
+            return WIDE;
+        }
+        int zeros = 0, ascii = 0, ebcdic = 0;
+        for (int i = 0; i < _len; ++i) {
+            switch (_data[i]) {
+                case 0x00:
+                    zeros++;
+                    break;
+                case 0x0A:
+                case 0x20:
+                    ascii++;
+                    break;
+                case 0x15:
+                case 0x25:
+                case 0x40:
+                    ebcdic++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        final int evidence = ascii + ebcdic;
+        // In UTF-16 text that isn't mostly Latin (which detectWide() would have caught), each space and line end comes
+        // with a zero byte, so zero bytes make the counts above meaningless
+        if (MIN_EVIDENCE > evidence || zeros * 4 > evidence) {
+            return null;
+        }
+        if (ascii - ebcdic >= MIN_MARGIN * evidence) {
+            return ASCII;
+        }
+        if (ebcdic - ascii >= MIN_MARGIN * evidence) {
+            return EBCDIC;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up (working out and caching on first use) the family of the given charset.
+     */
+    static CharsetFamily of(final String _charsetName) {
+        CharsetFamily family = s_families.get(_charsetName);
+        if (null == family) {
+            family = build(_charsetName);
+            s_families.putIfAbsent(_charsetName, family);
+        }
+        return family;
+    }
+
+    private static CharsetFamily build(final String _charsetName) {
+        final Charset cs = DecoderPool.getCharset(_charsetName);
+        if (null == cs) {
+            return OTHER;
+        }
+        if (decodesToSpace(cs, 0x20)) {
+            return ASCII;
+        }
+        if (decodesToSpace(cs, 0x40)) {
+            return EBCDIC;
+        }
+        if (decodesToSpace(cs, 0x00, 0x20) || decodesToSpace(cs, 0x20, 0x00) || decodesToSpace(cs, 0x00, 0x00, 0x00, 0x20) || decodesToSpace(cs, 0x20, 0x00, 0x00, 0x00)) {
+            return WIDE;
+        }
+        return OTHER;
+    }
+
+    private static boolean decodesToSpace(final Charset _cs, final int... _bytes) {
+        final byte[] bytes = new byte[_bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) _bytes[i];
+        }
+        try {
+            return " ".equals(_cs.newDecoder().decode(ByteBuffer.wrap(bytes)).toString());
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    private final String m_description;
+
+    CharsetFamily(final String _description) {
+        m_description = _description;
+    }
+
+    @Override
+    public String toString() {
+        return m_description;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches {@link Charset} lookups (globally) and {@link CharsetDecoder}s and decode buffers (per thread), so that
+ * scoring a sample against a charset doesn't allocate anything in the steady state.
+ */
+final class DecoderPool {
+
+    /** Size, in chars, of the per-thread buffer that samples are decoded into, a chunk at a time */
+    static final int CHUNK_CHARS = 8 * 1024;
+
+    private static final Object UNSUPPORTED = new Object();
+    private static final ConcurrentHashMap<String, Object> s_charsets = new ConcurrentHashMap<String, Object>();
+
+    private static final ThreadLocal<CharBuffer> s_charBuffers = new ThreadLocal<CharBuffer>() {
+        @Override
+        protected CharBuffer initialValue() {
+            return CharBuffer.allocate(CHUNK_CHARS);
+        }
+    };
+
+    private static final ThreadLocal<HashMap<String, CharsetDecoder>> s_decoders = new ThreadLocal<HashMap<String, CharsetDecoder>>() {
+        @Override
+        protected HashMap<String, CharsetDecoder> initialValue() {
+            return new HashMap<String, CharsetDecoder>();
+        }
+    };
+
+    /**
+     * Looks up a charset by name, remembering the answer (including a negative one).
+     *
+     * @return the charset, or <tt>null</tt> if it isn't supported by this JVM
+     */
+    static Charset getCharset(final String _charsetName) {
+        Object cs = s_charsets.get(_charsetName);
+        if (null == cs) {
+            try {
+                cs = Charset.forName(_charsetName);
+            } catch (final Exception e) {
+                cs = UNSUPPORTED;
+            }
+            s_charsets.putIfAbsent(_charsetName, cs);
+        }
+        return UNSUPPORTED == cs ? null : (Charset) cs;
+    }
+
+    /**
+     * Gets this thread's decoder for the given charset, freshly reset. Unmappable characters are replaced; malformed
+     * input is reported.
+     *
+     * @return the decoder, or <tt>null</tt> if the charset isn't supported or can't decode
+     */
+    static CharsetDecoder getDecoder(final String _charsetName) {
+        final HashMap<String, CharsetDecoder> decoders = s_decoders.get();
+        CharsetDecoder decoder = decoders.get(_charsetName);
+        if (null == decoder) {
+            final Charset cs = getCharset(_charsetName);
+            if (null == cs) {
+                return null;
+            }
+            try {
+                decoder = cs.newDecoder();
+            } catch (final Exception e) {
+                return null;
+            }
+            decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(_charsetName, decoder);
+        }
+        return decoder.reset();
+    }
+
+    /**
+     * Gets this thread's decode buffer, cleared.
+     */
+    static CharBuffer getCharBuffer() {
+        final CharBuffer ret = s_charBuffers.get();
+        ret.clear();
+        return ret;
+    }
+
+    private DecoderPool() {
+    }
+}
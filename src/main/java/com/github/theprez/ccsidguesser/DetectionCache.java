@@ -0,0 +1,408 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.github.theprez.ccsidguesser.CcsidConfidenceScorer.Confidence;
+import com.github.theprez.ccsidguesser.SampleReader.SamplingMode;
+
+/**
+ * An on-disk cache of detection results, so that files that haven't changed since the last run aren't scored again.
+ * <p>
+ * Results are looked up two ways. A file whose path, size, modification time, file key (inode), and CCSID tag all
+ * match a cached entry is answered without being read at all. Otherwise, its sample is read and hashed, and any file
+ * whose sample had the same content, and that has the same tag, shares that result. Each result is the top of the
+ * ranking (whole tie groups, at least {@link #MAX_RANKED} charsets) with its confidences.
+ * <p>
+ * The tag is part of both keys because the tagged encoding goes first in the preference list, and so decides ties:
+ * the same sample can rank differently in files with different tags. (Setting a tag doesn't change a file's
+ * modification time, so the identity key can't rely on that.)
+ * <p>
+ * The whole cache is read when it's opened and written back, merged with whatever other processes have written in
+ * the meantime, by {@link #save()}. A lock file next to the cache keeps processes from reading it half-written or
+ * overwriting each other's entries. Only the {@link #MAX_FILES} most recently used files are kept.
+ * <p>
+ * Every cache file carries a fingerprint of the settings that affect scoring; a cache written under different
+ * settings is ignored (and then replaced).
+ */
+final class DetectionCache {
+
+    private static final class FileEntry {
+        final String m_fileKey;
+        final long m_hash;
+        volatile long m_lastUsed;
+        final long m_mtime;
+        final long m_size;
+        final int m_taggedCcsid;
+
+        FileEntry(final long _size, final long _mtime, final String _fileKey, final int _taggedCcsid, final long _hash, final long _lastUsed) {
+            m_size = _size;
+            m_mtime = _mtime;
+            m_fileKey = _fileKey;
+            m_taggedCcsid = _taggedCcsid;
+            m_hash = _hash;
+            m_lastUsed = _lastUsed;
+        }
+
+        boolean matches(final BasicFileAttributes _attrs, final int _taggedCcsid) {
+            return m_size == _attrs.size() && m_mtime == _attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) && m_fileKey.equals(fileKeyOf(_attrs)) && m_taggedCcsid == _taggedCcsid;
+        }
+    }
+
+    private static final class Result {
+        final String[] m_charsets;
+        final double[] m_confidences;
+
+        Result(final String[] _charsets, final double[] _confidences) {
+            m_charsets = _charsets;
+            m_confidences = _confidences;
+        }
+    }
+
+    private static final int MAGIC = 0x43434743; // "CCGC"
+    /** The count of each ranking is stored in a byte */
+    private static final int MAX_RESULT_SIZE = 255;
+    /** The most files the cache remembers */
+    static final int MAX_FILES = 100000;
+    /** The fewest charsets kept from each ranking; a request to show more than this bypasses the cache */
+    static final int MAX_RANKED = 32;
+    private static final int VERSION = 2;
+
+    private static String fileKeyOf(final BasicFileAttributes _attrs) {
+        final Object key = _attrs.fileKey();
+        return null == key ? "" : key.toString();
+    }
+
+    /**
+     * Builds the fingerprint of the settings that affect scoring.
+     *
+     * @param _stagedMinSurvivors
+     *            the staged-scoring survivor count, or zero when scoring isn't staged
+     * @param _structural
+     *            whether structurally clean Unicode is allowed to short-circuit scoring
+     */
+    static long fingerprint(final int _sampleSize, final SamplingMode _sampling, final int _stagedMinSurvivors, final boolean _structural, final CharacterWeights _weights) {
+        long h = VERSION;
+        h = 31 * h + _sampleSize;
+        h = 31 * h + _sampling.ordinal();
+        h = 31 * h + _stagedMinSurvivors;
+        h = 31 * h + (_structural ? 1 : 0);
+        h = 31 * h + _weights.fingerprint();
+        return h;
+    }
+
+    /**
+     * A fast 64-bit hash of a sample's content (and region layout), 8 bytes at a time, and of the CCSID tag of the file
+     * it came from.
+     *
+     * @param _taggedCcsid
+     *            the file's CCSID tag, or -1 if it isn't tagged
+     */
+    static long hash(final Sample _sample, final int _taggedCcsid) {
+        final ByteBuffer buf = ByteBuffer.wrap(_sample.getData()).order(ByteOrder.LITTLE_ENDIAN);
+        final int len = _sample.getLength();
+        long h = 0x9E3779B97F4A7C15L ^ len;
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            h = mix(h ^ buf.getLong(i));
+        }
+        long tail = 0;
+        for (; i < len; ++i) {
+            tail = (tail << 8) | (buf.get(i) & 0xff);
+        }
+        h = mix(h ^ tail);
+        for (int region = 0; region < _sample.getRegionCount(); ++region) {
+            h = mix(h ^ _sample.getRegionStart(region));
+        }
+        h = mix(h ^ (_sample.endsAtEof() ? 1 : 2));
+        return mix(h ^ _taggedCcsid);
+    }
+
+    private static long mix(long _h) {
+        // the 64-bit finalizer from MurmurHash3
+        _h ^= _h >>> 33;
+        _h *= 0xFF51AFD7ED558CCDL;
+        _h ^= _h >>> 33;
+        _h *= 0xC4CEB9FE1A85EC53L;
+        _h ^= _h >>> 33;
+        return _h;
+    }
+
+    /**
+     * Opens (reading in full) the cache at the given location. A missing, unreadable, or mismatched cache file starts
+     * out empty.
+     */
+    static DetectionCache open(final File _file, final long _fingerprint) throws IOException {
+        final DetectionCache ret = new DetectionCache(_file, _fingerprint);
+        try (RandomAccessFile lockFile = new RandomAccessFile(ret.getLockFile(), "rw")) {
+            final FileLock lock = lockFile.getChannel().lock(0, Long.MAX_VALUE, true);
+            try {
+                ret.read(ret.m_files, ret.m_results);
+            } finally {
+                lock.release();
+            }
+        }
+        return ret;
+    }
+
+    private volatile boolean m_dirty = false;
+    private final File m_file;
+    private final ConcurrentHashMap<String, FileEntry> m_files = new ConcurrentHashMap<String, FileEntry>();
+    private final long m_fingerprint;
+    private final ConcurrentHashMap<Long, Result> m_results = new ConcurrentHashMap<Long, Result>();
+
+    private DetectionCache(final File _file, final long _fingerprint) {
+        m_file = _file;
+        m_fingerprint = _fingerprint;
+    }
+
+    /**
+     * Whether this cache holds results for settings with the given fingerprint.
+     */
+    boolean hasFingerprint(final long _fingerprint) {
+        return m_fingerprint == _fingerprint;
+    }
+
+    private File getLockFile() {
+        return new File(m_file.getPath() + ".lock");
+    }
+
+    /**
+     * Looks up a file by its identity.
+     *
+     * @param _taggedCcsid
+     *            the file's CCSID tag, or -1 if it isn't tagged
+     * @return the cached ranking, or <tt>null</tt> if the file (or its tag) has changed or was never seen
+     */
+    CcsidConfidenceScorer lookup(final File _file, final BasicFileAttributes _attrs, final int _taggedCcsid) {
+        final FileEntry entry = m_files.get(_file.getAbsolutePath());
+        if (null == entry || !entry.matches(_attrs, _taggedCcsid)) {
+            return null;
+        }
+        final Result result = m_results.get(entry.m_hash);
+        if (null == result) {
+            return null;
+        }
+        entry.m_lastUsed = System.currentTimeMillis();
+        m_dirty = true;
+        return toScorer(result);
+    }
+
+    /**
+     * Looks up a sample by its hash (from {@link #hash(Sample, int)}).
+     *
+     * @return the cached ranking, or <tt>null</tt> if no sample with this content was seen
+     */
+    CcsidConfidenceScorer lookup(final long _sampleHash) {
+        final Result result = m_results.get(_sampleHash);
+        return null == result ? null : toScorer(result);
+    }
+
+    /**
+     * Records the ranking for a file and its sample. If a ranking for the same sample content is already cached, the
+     * file just shares it.
+     */
+    void put(final File _file, final BasicFileAttributes _attrs, final int _taggedCcsid, final long _sampleHash, final CcsidConfidenceScorer _ranking) {
+        if (!m_results.containsKey(_sampleHash)) {
+            m_results.putIfAbsent(_sampleHash, toResult(_ranking));
+        }
+        m_files.put(_file.getAbsolutePath(), new FileEntry(_attrs.size(), _attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKeyOf(_attrs), _taggedCcsid, _sampleHash, System.currentTimeMillis()));
+        m_dirty = true;
+    }
+
+    private void read(final Map<String, FileEntry> _files, final Map<Long, Result> _results) {
+        if (!m_file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file), 64 * 1024))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt() || m_fingerprint != in.readLong()) {
+                return;
+            }
+            final String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = in.readUTF();
+            }
+            final Map<Long, Result> results = new HashMap<Long, Result>();
+            for (int numResults = in.readInt(); 0 < numResults; --numResults) {
+                final long hash = in.readLong();
+                final int count = in.readUnsignedByte();
+                final String[] charsets = new String[count];
+                final double[] confidences = new double[count];
+                for (int i = 0; i < count; ++i) {
+                    charsets[i] = names[in.readUnsignedShort()];
+                    confidences[i] = in.readDouble();
+                }
+                results.put(hash, new Result(charsets, confidences));
+            }
+            final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+            for (int numFiles = in.readInt(); 0 < numFiles; --numFiles) {
+                final String path = in.readUTF();
+                files.put(path, new FileEntry(in.readLong(), in.readLong(), in.readUTF(), in.readInt(), in.readLong(), in.readLong()));
+            }
+            // only take the contents once the whole file has been read successfully
+            _results.putAll(results);
+            _files.putAll(files);
+        } catch (final EOFException e) {
+            // truncated; start over
+        } catch (final IOException e) {
+            // unreadable; start over
+        } catch (final RuntimeException e) {
+            // corrupt; start over
+        }
+    }
+
+    /**
+     * Writes the cache back to disk, if anything changed. Entries written by other processes since this cache was
+     * opened are kept (the most recently used wins when both have the same file), and the least recently used files
+     * are dropped past {@link #MAX_FILES}.
+     */
+    void save() throws IOException {
+        if (!m_dirty) {
+            return;
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(getLockFile(), "rw"); FileChannel channel = lockFile.getChannel()) {
+            final FileLock lock = channel.lock();
+            try {
+                final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+                final Map<Long, Result> results = new HashMap<Long, Result>();
+                read(files, results);
+                for (final Entry<String, FileEntry> entry : m_files.entrySet()) {
+                    final FileEntry onDisk = files.get(entry.getKey());
+                    if (null == onDisk || onDisk.m_lastUsed <= entry.getValue().m_lastUsed) {
+                        files.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                results.putAll(m_results);
+
+                final List<Entry<String, FileEntry>> kept = new ArrayList<Entry<String, FileEntry>>(files.entrySet());
+                if (kept.size() > MAX_FILES) {
+                    Collections.sort(kept, (_a, _b) -> Long.compare(_b.getValue().m_lastUsed, _a.getValue().m_lastUsed));
+                    kept.subList(MAX_FILES, kept.size()).clear();
+                }
+                final Set<Long> usedHashes = new HashSet<Long>();
+                for (final Entry<String, FileEntry> entry : kept) {
+                    usedHashes.add(entry.getValue().m_hash);
+                }
+                results.keySet().retainAll(usedHashes);
+                write(kept, results);
+            } finally {
+                lock.release();
+            }
+        }
+        m_dirty = false;
+    }
+
+    private CcsidConfidenceScorer toScorer(final Result _result) {
+        final CcsidConfidenceScorer ret = new CcsidConfidenceScorer();
+        for (int i = 0; i < _result.m_charsets.length; ++i) {
+            // one hit in one char is exactly the stored confidence
+            ret.addScoredCharset(_result.m_charsets[i], new Confidence(_result.m_confidences[i], 1, 1));
+        }
+        return ret;
+    }
+
+    private Result toResult(final CcsidConfidenceScorer _ranking) {
+        final List<String> charsets = new ArrayList<String>();
+        final List<Double> confidences = new ArrayList<Double>();
+        for (final Entry<Confidence, LinkedList<String>> entry : _ranking.getSortedData().entrySet()) {
+            if (charsets.size() >= MAX_RANKED) {
+                break;
+            }
+            // whole tie groups (up to what the format can hold), so that --show=top still sees every tie
+            for (final String charset : entry.getValue()) {
+                if (MAX_RESULT_SIZE == charsets.size()) {
+                    break;
+                }
+                charsets.add(charset);
+                confidences.add(entry.getKey().getConfidence());
+            }
+        }
+        final double[] conf = new double[confidences.size()];
+        for (int i = 0; i < conf.length; ++i) {
+            conf[i] = confidences.get(i);
+        }
+        return new Result(charsets.toArray(new String[0]), conf);
+    }
+
+    private void write(final List<Entry<String, FileEntry>> _files, final Map<Long, Result> _results) throws IOException {
+        final Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+        final List<String> names = new ArrayList<String>();
+        for (final Result result : _results.values()) {
+            for (final String charset : result.m_charsets) {
+                if (!nameIndex.containsKey(charset)) {
+                    nameIndex.put(charset, names.size());
+                    names.add(charset);
+                }
+            }
+        }
+        final Path target = m_file.getAbsoluteFile().toPath();
+        final Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(m_fingerprint);
+                out.writeInt(names.size());
+                for (final String name : names) {
+                    out.writeUTF(name);
+                }
+                out.writeInt(_results.size());
+                for (final Entry<Long, Result> entry : _results.entrySet()) {
+                    final Result result = entry.getValue();
+                    out.writeLong(entry.getKey());
+                    out.writeByte(result.m_charsets.length);
+                    for (int i = 0; i < result.m_charsets.length; ++i) {
+                        out.writeShort(nameIndex.get(result.m_charsets[i]));
+                        out.writeDouble(result.m_confidences[i]);
+                    }
+                }
+                out.writeInt(_files.size());
+                for (final Entry<String, FileEntry> entry : _files) {
+                    final FileEntry file = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(file.m_size);
+                    out.writeLong(file.m_mtime);
+                    out.writeUTF(file.m_fileKey);
+                    out.writeInt(file.m_taggedCcsid);
+                    out.writeLong(file.m_hash);
+                    out.writeLong(file.m_lastUsed);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
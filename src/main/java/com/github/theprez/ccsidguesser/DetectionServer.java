@@ -0,0 +1,429 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.ConvertMode;
+import com.github.theprez.ccsidguesser.CcsidGuesser.Options;
+import com.github.theprez.ccsidguesser.CcsidGuesser.OutputFormat;
+import com.github.theprez.ccsidguesser.SampleReader.SamplingMode;
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * A resident detector that answers requests over a loopback socket, so that scripts calling the tool once per file
+ * don't pay for JVM startup and charset table construction every time. The same jar acts as the client.
+ * <p>
+ * The protocol is line-based UTF-8. A request is a header line, then <tt>key=value</tt> lines (the options, and the
+ * files to process), then an empty line. The response is a series of lines, each prefixed with <tt>O </tt> (for
+ * standard output) or <tt>E </tt> (for standard error), then a <tt>B </tt> line with the number of files that looked
+ * binary (from which the client takes its exit code), and ends when the server closes the connection. Results are
+ * printed exactly as the one-shot command would print them.
+ * <p>
+ * While a request is served, whatever the pipeline writes to {@link System#out} and {@link System#err} (through the
+ * logger, for the most part), on the thread serving it or on threads started for it, goes to that request's response,
+ * just as a one-shot run would write it to its own console.
+ * <p>
+ * Only clients that can read the server's token file (created, readable by its owner only, when the server starts)
+ * are served, since requests can convert and retag files with the server's authority.
+ */
+final class DetectionServer {
+
+    /**
+     * Where a request's standard output and standard error go.
+     */
+    private static final class Response {
+        volatile boolean m_done = false;
+        final PrintStream m_err;
+        final PrintStream m_out;
+
+        Response(final PrintStream _out, final PrintStream _err) {
+            m_out = _out;
+            m_err = _err;
+        }
+    }
+
+    /**
+     * The server's standard output or standard error. What's written on a thread serving a request (or started while
+     * serving one) goes to that request's response; everything else goes to the console.
+     */
+    private static final class RoutingStream extends OutputStream {
+        private final PrintStream m_console;
+        private final boolean m_isErr;
+
+        RoutingStream(final PrintStream _console, final boolean _isErr) {
+            m_console = _console;
+            m_isErr = _isErr;
+        }
+
+        @Override
+        public void flush() {
+            getTarget().flush();
+        }
+
+        private PrintStream getTarget() {
+            final Response response = s_response.get();
+            if (null == response || response.m_done) {
+                // not serving a request, or a thread left over from one that's finished
+                return m_console;
+            }
+            return m_isErr ? response.m_err : response.m_out;
+        }
+
+        @Override
+        public void write(final byte[] _b, final int _off, final int _len) {
+            getTarget().write(_b, _off, _len);
+        }
+
+        @Override
+        public void write(final int _b) {
+            getTarget().write(_b);
+        }
+    }
+
+    /**
+     * Turns what's written to it into tagged lines on the response.
+     */
+    private static final class TaggedLineStream extends OutputStream {
+        private final ByteArrayOutputStream m_line = new ByteArrayOutputStream();
+        private final Writer m_sink;
+        private final char m_tag;
+
+        TaggedLineStream(final Writer _sink, final char _tag) {
+            m_sink = _sink;
+            m_tag = _tag;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (0 < m_line.size()) {
+                writeLine();
+            }
+        }
+
+        @Override
+        public synchronized void write(final int _b) throws IOException {
+            if ('\n' == _b) {
+                writeLine();
+            } else if ('\r' != _b) {
+                m_line.write(_b);
+            }
+        }
+
+        private void writeLine() throws IOException {
+            final String line = new String(m_line.toByteArray(), StandardCharsets.UTF_8);
+            m_line.reset();
+            synchronized (m_sink) {
+                m_sink.write(m_tag + " " + line + "\n");
+                m_sink.flush();
+            }
+        }
+    }
+
+    private static final String HEADER = "CCSIDGUESSER/1";
+    /** The response being written by the current thread, if any; threads started while serving a request inherit it */
+    private static final InheritableThreadLocal<Response> s_response = new InheritableThreadLocal<Response>();
+    /** How many requests may wait for a worker before new connections are handled on the accepting thread */
+    private static final int QUEUE_DEPTH = 64;
+
+    private static File getTokenFile(final int _port) {
+        return new File(System.getProperty("user.home"), ".ccsidguesser" + File.separator + "server-" + _port + ".token");
+    }
+
+    /**
+     * Sends the files named on the command line to a server and prints its response.
+     *
+     * @param _fileArgs
+     *            files, directories, and/or globs, as given on the command line
+     * @param _fileListStr
+     *            a file containing one file name per line, <tt>-</tt> for standard input, or <tt>null</tt>
+     * @return whether any of the files looked binary
+     */
+    static boolean runClient(final AppLogger _logger, final int _port, final Options _options, final List<String> _fileArgs, final String _fileListStr) throws IOException {
+        final String token = new String(Files.readAllBytes(getTokenFile(_port).toPath()), StandardCharsets.UTF_8).trim();
+        // Relative names are resolved here, since the server's working directory is its own. The server strips the
+        // directory back off when printing, so output matches a local run.
+        final String cwd = new File("").getAbsolutePath() + File.separator;
+        final List<String> names = new LinkedList<String>(_fileArgs);
+        if (null != _fileListStr) {
+            final InputStream in = "-".equals(_fileListStr) ? System.in : new FileInputStream(_fileListStr);
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while (null != (line = br.readLine())) {
+                    if (!line.trim().isEmpty()) {
+                        names.add(line.trim());
+                    }
+                }
+            }
+        }
+        final boolean single = 1 == names.size() && null == _fileListStr && !BatchScanner.isGlob(names.get(0)) && !new File(names.get(0)).isDirectory();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), _port)) {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(HEADER + "\n");
+            out.write("token=" + token + "\n");
+            out.write("format=" + _options.outputFormat.name() + "\n");
+            out.write("show=" + _options.showNum + "\n");
+            out.write("convert=" + _options.convertMode.name() + "\n");
+            out.write("autofix=" + _options.autofix + "\n");
+            out.write("sample-size=" + _options.sampleSize + "\n");
+            out.write("sampling=" + _options.sampling.name() + "\n");
+            out.write("segments=" + _options.segmentWindow + "\n");
+            out.write("archives=" + _options.archives + "\n");
+            out.write("staged=" + _options.staged + "\n");
+            out.write("ordered=" + _options.ordered + "\n");
+            out.write("jobs=" + _options.jobs + "\n");
+            out.write("base=" + cwd + "\n");
+            for (final String name : names) {
+                String resolved = name;
+                if (!new File(name).isAbsolute()) {
+                    // a bare glob is walked from "." by the batch scanner, and printed that way
+                    resolved = cwd + (BatchScanner.isGlob(name) && -1 == name.replace(File.separatorChar, '/').indexOf('/') ? "." + File.separator : "") + name;
+                }
+                out.write((single ? "single=" : "arg=") + resolved + "\n");
+            }
+            out.write("\n");
+            out.flush();
+
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            boolean binary = false;
+            String line;
+            while (null != (line = in.readLine())) {
+                if (line.startsWith("O ")) {
+                    System.out.println(line.substring(2));
+                } else if (line.startsWith("E ")) {
+                    System.err.println(line.substring(2));
+                } else if (line.startsWith("B ")) {
+                    binary = 0 < Integer.parseInt(line.substring(2));
+                } else {
+                    _logger.println_verbose("Unexpected response line: " + line);
+                }
+            }
+            return binary;
+        }
+    }
+
+    private final Options m_baseOptions;
+    private final AppLogger m_logger;
+    private final int m_port;
+    private String m_token;
+    private final int m_workers;
+
+    /**
+     * @param _baseOptions
+     *            options that apply to every request (the weight profile, scoring pool, and cache); the rest come from
+     *            each request
+     * @param _workers
+     *            how many requests are served at once
+     */
+    DetectionServer(final AppLogger _logger, final Options _baseOptions, final int _port, final int _workers) {
+        m_logger = _logger;
+        m_baseOptions = _baseOptions;
+        m_port = _port;
+        m_workers = _workers;
+    }
+
+    private void handle(final Socket _socket) {
+        try (Socket socket = _socket) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            final Writer sink = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            final PrintStream out = new PrintStream(new TaggedLineStream(sink, 'O'), true, "UTF-8");
+            final PrintStream err = new PrintStream(new TaggedLineStream(sink, 'E'), true, "UTF-8");
+            final Response response = new Response(out, err);
+            s_response.set(response);
+            int binaryFiles = 0;
+            try {
+                binaryFiles = serve(in, out);
+            } catch (final Exception e) {
+                m_logger.printExceptionStack_verbose(e);
+                m_logger.println_err(e.getLocalizedMessage());
+            } finally {
+                response.m_done = true;
+                s_response.remove();
+            }
+            out.close();
+            err.close();
+            synchronized (sink) {
+                sink.write("B " + binaryFiles + "\n");
+                sink.flush();
+            }
+        } catch (final IOException e) {
+            m_logger.printExceptionStack_verbose(e);
+        }
+    }
+
+    /**
+     * Serves requests until the process is killed.
+     */
+    void run() throws IOException {
+        m_token = writeTokenFile();
+        System.setOut(new PrintStream(new RoutingStream(System.out, false), true));
+        System.setErr(new PrintStream(new RoutingStream(System.err, true), true));
+        if (null != m_baseOptions.cache) {
+            // the cache is written back once, when the server is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    m_baseOptions.cache.save();
+                } catch (final IOException e) {
+                    m_logger.printExceptionStack_verbose(e);
+                }
+            }));
+        }
+        if (null != m_baseOptions.tagStore) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    m_baseOptions.tagStore.close();
+                } catch (final IOException e) {
+                    m_logger.printExceptionStack_verbose(e);
+                }
+            }));
+        }
+        // Load every charset table and index up front, so that even the first request is answered warm
+        CcsidUtils.unknownStringToCCSID("UTF-8");
+        SingleByteTable.forCharset("Cp037");
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(m_workers, m_workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH), new ThreadPoolExecutor.CallerRunsPolicy());
+        try (ServerSocket server = new ServerSocket(m_port, QUEUE_DEPTH, InetAddress.getLoopbackAddress())) {
+            m_logger.println_success("Listening on " + server.getLocalSocketAddress());
+            while (true) {
+                final Socket socket = server.accept();
+                pool.execute(() -> handle(socket));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return how many of the files looked binary
+     */
+    private int serve(final BufferedReader _in, final PrintStream _out) throws IOException, InterruptedException {
+        if (!HEADER.equals(_in.readLine())) {
+            throw new IOException("Unsupported request");
+        }
+        final Options options = new Options();
+        options.weights = m_baseOptions.weights;
+        options.scoringPool = m_baseOptions.scoringPool;
+        options.cache = m_baseOptions.cache;
+        options.tagStore = m_baseOptions.tagStore;
+        String token = null;
+        String base = null;
+        String single = null;
+        final List<String> args = new LinkedList<String>();
+        String line;
+        while (null != (line = _in.readLine()) && !line.isEmpty()) {
+            final int eq = line.indexOf('=');
+            if (-1 == eq) {
+                throw new IOException("Malformed request line: " + line);
+            }
+            final String key = line.substring(0, eq);
+            final String value = line.substring(eq + 1);
+            if ("token".equals(key)) {
+                token = value;
+            } else if ("format".equals(key)) {
+                options.outputFormat = OutputFormat.valueOf(value);
+            } else if ("show".equals(key)) {
+                options.showNum = Integer.parseInt(value);
+            } else if ("convert".equals(key)) {
+                options.convertMode = ConvertMode.valueOf(value);
+            } else if ("autofix".equals(key)) {
+                options.autofix = Boolean.parseBoolean(value);
+            } else if ("sample-size".equals(key)) {
+                options.sampleSize = Integer.parseInt(value);
+            } else if ("sampling".equals(key)) {
+                options.sampling = SamplingMode.valueOf(value);
+            } else if ("archives".equals(key)) {
+                options.archives = Boolean.parseBoolean(value);
+            } else if ("segments".equals(key)) {
+                options.segmentWindow = Integer.parseInt(value);
+            } else if ("staged".equals(key)) {
+                options.staged = Boolean.parseBoolean(value);
+            } else if ("ordered".equals(key)) {
+                options.ordered = Boolean.parseBoolean(value);
+            } else if ("jobs".equals(key)) {
+                options.jobs = Math.max(1, Math.min(m_workers, Integer.parseInt(value)));
+            } else if ("base".equals(key)) {
+                base = value;
+            } else if ("single".equals(key)) {
+                single = value;
+            } else if ("arg".equals(key)) {
+                args.add(value);
+            }
+        }
+        if (!m_token.equals(token)) {
+            throw new IOException("Not authorized");
+        }
+        if (ConvertMode.STDOUT == options.convertMode) {
+            throw new IOException("--convert=stdout isn't supported through the server");
+        }
+        if (null != options.cache && !options.cache.hasFingerprint(DetectionCache.fingerprint(options.sampleSize, options.sampling, CcsidGuesser.getStagedMinSurvivors(options), CcsidGuesser.allowsStructuralGuess(options), options.weights))) {
+            // the server's cache only holds results for the server's own settings
+            options.cache = null;
+        }
+        int binaryFiles = 0;
+        if (null != single) {
+            try {
+                if (BinaryClassifier.CCSID_BINARY == CcsidGuesser.processFile(m_logger, options, new File(single), null, _out)) {
+                    binaryFiles = 1;
+                }
+            } catch (final Exception e) {
+                // reported as the one-shot command would, which still exits normally
+                m_logger.printExceptionStack_verbose(e);
+                m_logger.println_err(e.getLocalizedMessage());
+            }
+        } else {
+            final BatchScanner scanner = new BatchScanner(m_logger, options, _out, base);
+            scanner.run(args, null);
+            binaryFiles = scanner.getBinaryFileCount();
+        }
+        if (null != options.tagStore) {
+            // the client expects its files to be tagged by the time it gets an answer
+            options.tagStore.flush();
+        }
+        return binaryFiles;
+    }
+
+    private String writeTokenFile() throws IOException {
+        final byte[] random = new byte[24];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder token = new StringBuilder();
+        for (final byte b : random) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        final Path path = getTokenFile(m_port).toPath();
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (final UnsupportedOperationException e) {
+            Files.createFile(path);
+            m_logger.println_warn("WARNING: unable to restrict access to " + path);
+        }
+        Files.write(path, token.toString().getBytes(StandardCharsets.UTF_8));
+        path.toFile().deleteOnExit();
+        return token.toString();
+    }
+}
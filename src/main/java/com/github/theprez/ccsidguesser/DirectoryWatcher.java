@@ -0,0 +1,288 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.Options;
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * Watches a directory tree and runs the single-file pipeline (with whatever <tt>--autofix</tt> and <tt>--convert</tt>
+ * were asked for) on each file that arrives in it or changes, until the process is killed. Files that are already
+ * there when watching starts are left alone.
+ * <p>
+ * A file isn't picked up until it has settled: no events for it, and no change in its size or modification time, for a
+ * set interval, so files still being uploaded aren't processed half-written. Any number of events for one file in that
+ * time come to a single run. Settled files are handed, in the order they arrived, to a fixed pool of workers, with only
+ * a bounded number queued at once; the rest wait their turn, so a burst of arrivals doesn't pile up unbounded work.
+ * <p>
+ * The watcher's own writes (converted files, <tt>.utf8</tt> and <tt>.bak</tt> copies, and the temporary files they're
+ * written through) aren't mistaken for arrivals.
+ */
+final class DirectoryWatcher {
+
+    /**
+     * A file that has arrived or changed, and hasn't been processed since.
+     */
+    private static final class Arrival {
+        final long m_firstSeen;
+        long m_lastChange;
+        long m_modified;
+        long m_size;
+
+        Arrival(final long _now) {
+            m_firstSeen = _now;
+            m_lastChange = _now;
+        }
+    }
+
+    static final long DEFAULT_SETTLE_MILLIS = 1000;
+
+    /** How many settled files may be queued for the workers, per worker */
+    private static final int QUEUED_PER_JOB = 2;
+
+    /**
+     * @return the file's size and modification time, or <tt>null</tt> if it's gone or isn't a regular file
+     */
+    private static long[] getState(final Path _file) {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(_file, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() } : null;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private final Path m_dir;
+    private final HashSet<Path> m_dirs = new HashSet<Path>();
+    private final Set<Path> m_inFlight = ConcurrentHashMap.newKeySet();
+    private final HashMap<WatchKey, Path> m_keys = new HashMap<WatchKey, Path>();
+    private final AppLogger m_logger;
+    private final Options m_options;
+    /** Arrivals that haven't been handed to a worker yet, oldest first */
+    private final LinkedHashMap<Path, Arrival> m_pending = new LinkedHashMap<Path, Arrival>();
+    private final Semaphore m_permits;
+    /** The size and modification time of each file as of when it was last processed (or when watching started) */
+    private final ConcurrentHashMap<Path, long[]> m_processed = new ConcurrentHashMap<Path, long[]>();
+    private final BatchScanner m_scanner;
+    private final long m_settleMillis;
+    private WatchService m_watchService;
+
+    /**
+     * @param _settleMillis
+     *            how long a file has to go unchanged before it's processed
+     */
+    DirectoryWatcher(final AppLogger _logger, final Options _options, final File _dir, final long _settleMillis) {
+        m_logger = _logger;
+        m_options = _options;
+        m_dir = _dir.toPath().toAbsolutePath().normalize();
+        m_settleMillis = _settleMillis;
+        m_permits = new Semaphore(QUEUED_PER_JOB * _options.jobs);
+        m_scanner = new BatchScanner(_logger, _options, System.out, m_dir.toString() + File.separator);
+    }
+
+    /**
+     * Hands settled files to the workers, oldest first, for as long as there's room in the queue.
+     */
+    private void dispatch(final ExecutorService _pool) {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Map.Entry<Path, Arrival>> it = m_pending.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Path, Arrival> entry = it.next();
+            final Path file = entry.getKey();
+            final Arrival arrival = entry.getValue();
+            if (m_inFlight.contains(file) || now - arrival.m_lastChange < m_settleMillis) {
+                // still being processed from an earlier arrival, or not settled yet
+                continue;
+            }
+            final long[] state = getState(file);
+            if (null == state) {
+                it.remove();
+                continue;
+            }
+            if (state[0] != arrival.m_size || state[1] != arrival.m_modified) {
+                // still being written
+                arrival.m_size = state[0];
+                arrival.m_modified = state[1];
+                arrival.m_lastChange = now;
+                continue;
+            }
+            final long[] processed = m_processed.get(file);
+            if (null != processed && processed[0] == state[0] && processed[1] == state[1]) {
+                // nothing new since it was last processed (most likely, the event was for our own write)
+                it.remove();
+                continue;
+            }
+            if (!m_permits.tryAcquire()) {
+                return;
+            }
+            it.remove();
+            m_inFlight.add(file);
+            _pool.submit(() -> process(file, arrival.m_firstSeen));
+        }
+    }
+
+    /**
+     * Notes that a file has arrived or changed.
+     */
+    private void note(final Path _file) {
+        if (Transcoder.isOutputFile(_file, m_options.convertMode)) {
+            return;
+        }
+        final long[] state = getState(_file);
+        if (null == state) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        Arrival arrival = m_pending.get(_file);
+        if (null == arrival) {
+            arrival = new Arrival(now);
+            m_pending.put(_file, arrival);
+        }
+        arrival.m_lastChange = now;
+        arrival.m_size = state[0];
+        arrival.m_modified = state[1];
+    }
+
+    private void onEvent(final Path _dir, final WatchEvent<?> _event) throws IOException {
+        if (StandardWatchEventKinds.OVERFLOW == _event.kind()) {
+            // events were lost; look at everything, and pick up whatever has changed since it was last seen
+            m_logger.println_verbose("Too many events at once; rescanning " + m_dir);
+            register(m_dir, true);
+            return;
+        }
+        final Path file = _dir.resolve((Path) _event.context());
+        if (StandardWatchEventKinds.ENTRY_DELETE == _event.kind()) {
+            m_processed.remove(file);
+            m_pending.remove(file);
+            return;
+        }
+        if (Files.isDirectory(file)) {
+            if (StandardWatchEventKinds.ENTRY_CREATE == _event.kind()) {
+                // files may have landed in it before it was registered
+                register(file, true);
+            }
+        } else {
+            note(file);
+        }
+    }
+
+    private void process(final Path _file, final long _firstSeen) {
+        try {
+            final String output = m_scanner.processOne(_file.toFile());
+            synchronized (System.out) {
+                System.out.print(output);
+                System.out.flush();
+            }
+            if (null != m_options.tagStore) {
+                // a file counts as handled once its tag is set
+                m_options.tagStore.flush();
+            }
+            m_logger.printfln_verbose("%s handled %d ms after it arrived", _file, System.currentTimeMillis() - _firstSeen);
+        } catch (final Exception e) {
+            m_logger.printExceptionStack_verbose(e);
+            m_logger.println_err(_file + ": " + e.getLocalizedMessage());
+        } finally {
+            final long[] state = getState(_file);
+            if (null != state) {
+                m_processed.put(_file, state);
+            }
+            m_inFlight.remove(_file);
+            m_permits.release();
+        }
+    }
+
+    /**
+     * Starts watching a directory and everything under it.
+     *
+     * @param _noteFiles
+     *            whether the files in it are new (or may have changed), or were there before watching started
+     */
+    private void register(final Path _dir, final boolean _noteFiles) throws IOException {
+        try {
+            Files.walkFileTree(_dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path _subdir, final BasicFileAttributes _attrs) throws IOException {
+                    if (m_dirs.add(_subdir)) {
+                        m_keys.put(_subdir.register(m_watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), _subdir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path _file, final BasicFileAttributes _attrs) {
+                    if (!_attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (!_noteFiles) {
+                        m_processed.put(_file, new long[] { _attrs.size(), _attrs.lastModifiedTime().toMillis() });
+                    } else if (!m_pending.containsKey(_file)) {
+                        note(_file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path _file, final IOException _exc) {
+                    m_logger.println_err("ERROR: unable to read " + _file + ": " + _exc.getLocalizedMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final NoSuchFileException e) {
+            // removed again before it could be looked at
+        }
+    }
+
+    /**
+     * Watches until interrupted.
+     */
+    void run() throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(m_options.jobs);
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            m_watchService = watchService;
+            register(m_dir, false);
+            m_logger.println_verbose("Watching " + m_dir);
+            final long pollMillis = Math.max(50, m_settleMillis / 4);
+            while (true) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (null != key) {
+                    final Path dir = m_keys.get(key);
+                    if (null != dir) {
+                        for (final WatchEvent<?> event : key.pollEvents()) {
+                            onEvent(dir, event);
+                        }
+                    }
+                    if (!key.reset()) {
+                        // the directory is gone
+                        m_dirs.remove(m_keys.remove(key));
+                    }
+                    key = watchService.poll();
+                }
+                dispatch(pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * A stand-in for the file system's CCSID tags, for systems that don't have them: tags are kept in a text file, one
+ * <tt>&lt;ccsid&gt; &lt;absolute path&gt;</tt> line per file. The whole file is read when the store is opened, and
+ * rewritten (to a temporary file that's moved into place) once per batch of writes. It isn't meant to be shared by
+ * processes running at the same time.
+ */
+final class FileTagStore extends BatchingTagStore {
+
+    private final Path m_path;
+    /** Tags, by absolute path */
+    private final LinkedHashMap<String, Integer> m_tags = new LinkedHashMap<String, Integer>();
+
+    FileTagStore(final AppLogger _logger, final File _file) throws IOException {
+        super(_logger);
+        m_path = _file.getAbsoluteFile().toPath();
+        try (BufferedReader br = Files.newBufferedReader(m_path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNum = 0;
+            while (null != (line = br.readLine())) {
+                lineNum++;
+                final int space = line.indexOf(' ');
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    m_tags.put(line.substring(space + 1), Integer.parseInt(line.substring(0, space)));
+                } catch (final RuntimeException e) {
+                    throw new IOException(m_path + ":" + lineNum + ": not a '<ccsid> <path>' line");
+                }
+            }
+        } catch (final NoSuchFileException e) {
+            // nothing's been tagged yet
+        }
+    }
+
+    @Override
+    protected synchronized int readCcsid(final File _file) {
+        final Integer ccsid = m_tags.get(_file.getAbsolutePath());
+        return null == ccsid ? -1 : ccsid;
+    }
+
+    @Override
+    protected void writeCcsids(final int _ccsid, final List<File> _files) throws IOException {
+        synchronized (this) {
+            for (final File file : _files) {
+                m_tags.put(file.getAbsolutePath(), _ccsid);
+            }
+        }
+        final Path temp = Files.createTempFile(m_path.getParent(), "." + m_path.getFileName(), ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                synchronized (this) {
+                    for (final Entry<String, Integer> entry : m_tags.entrySet()) {
+                        out.write(entry.getValue() + " " + entry.getKey() + "\n");
+                    }
+                }
+            }
+            try {
+                Files.move(temp, m_path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, m_path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        m_logger.printfln_verbose("Set CCSID of %d file(s) to %d in %s", _files.size(), _ccsid, m_path);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.theprez.jcmdutils.AppLogger;
+import com.github.theprez.jcmdutils.ProcessLauncher;
+
+/**
+ * The real thing, on IBM i: tags are read with <tt>attr</tt> and written with <tt>setccsid</tt>. Since
+ * <tt>setccsid</tt> takes any number of files, each batch of writes costs one process rather than one per file.
+ * (<tt>attr</tt> only reads one file at a time, but tags are only read for files that need full scoring.)
+ */
+final class IbmiTagStore extends BatchingTagStore {
+
+    private static final String ATTR = "/QOpenSys/usr/bin/attr";
+    private static final String SETCCSID = "/QOpenSys/usr/bin/setccsid";
+
+    IbmiTagStore(final AppLogger _logger) {
+        super(_logger);
+    }
+
+    @Override
+    protected int readCcsid(final File _file) throws IOException {
+        final Process p = Runtime.getRuntime().exec(new String[] { ATTR, _file.getAbsolutePath(), "ccsid" });
+        final StringBuilder output = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"))) {
+            String line;
+            while (null != (line = br.readLine())) {
+                output.append(line).append('\n');
+            }
+        }
+        try {
+            m_logger.println_verbose("attr rc=" + p.waitFor());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        try {
+            return Integer.parseInt(output.toString().trim());
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    protected void writeCcsids(final int _ccsid, final List<File> _files) throws IOException {
+        final List<String> cmd = new ArrayList<String>(_files.size() + 2);
+        cmd.add(SETCCSID);
+        cmd.add("" + _ccsid);
+        for (final File file : _files) {
+            cmd.add(file.getAbsolutePath());
+        }
+        m_logger.printfln_verbose("Setting CCSID of %d file(s) to %d", _files.size(), _ccsid);
+        final Process p = Runtime.getRuntime().exec(cmd.toArray(new String[0]));
+        ProcessLauncher.pipeStreamsToCurrentProcess("SETCCSID", p, m_logger);
+        final int rc;
+        try {
+            rc = p.waitFor();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        m_logger.println_verbose("CCSID set rc=" + rc);
+        if (0 != rc) {
+            throw new IOException("setccsid failed (rc=" + rc + ") setting CCSID " + _ccsid);
+        }
+    }
+}
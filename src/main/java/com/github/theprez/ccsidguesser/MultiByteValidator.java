@@ -0,0 +1,227 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A byte-level state machine for a family of multi-byte charsets: the lead/trail byte rules of the ASCII-based ones
+ * (Shift-JIS, EUC, GBK/GB18030, Big5), or the shift-out/shift-in state of the mixed EBCDIC ones. Checking a sample this
+ * way is much cheaper than decoding it, and, unlike a decoder (which replaces what it can't map), it sees every invalid
+ * sequence, so a candidate that plainly doesn't fit the sample is ruled out before it's decoded at all.
+ * <p>
+ * The rules are deliberately a little looser than the charsets themselves (the union of the vendor variants in each
+ * family), since anything they let through is still decoded and scored.
+ */
+final class MultiByteValidator {
+
+    /** Flag, in a transition, marking the byte as a violation */
+    private static final int VIOLATION = 0x80;
+    /** A sample is never rejected for fewer violations than this, however short it is */
+    private static final int MIN_VIOLATIONS = 8;
+    /** A sample is rejected as soon as more than this fraction of the bytes checked so far are violations */
+    private static final double MAX_VIOLATION_RATE = 0.01;
+    /** How far into a region (other than the first) violations are forgiven, since it may start mid-character */
+    private static final int RESYNC_BYTES = 4;
+
+    private static final MultiByteValidator SHIFT_JIS = new MultiByteValidator("Shift-JIS", 2, 0)
+            // 0x80, 0xA0, and 0xFD-0xFF are single bytes in the IBM and Microsoft variants
+            .valid(0, 0x00, 0xFF, 0).valid(0, 0x81, 0x9F, 1).valid(0, 0xE0, 0xFC, 1)
+            .valid(1, 0x40, 0x7E, 0).valid(1, 0x80, 0xFC, 0)
+            .build();
+
+    private static final MultiByteValidator EUC_JP = new MultiByteValidator("EUC-JP", 4, 0)
+            // 0x8E introduces a half-width katakana, 0x8F a JIS X 0212 pair
+            .valid(0, 0x00, 0x7F, 0).valid(0, 0xA1, 0xFE, 1).valid(0, 0x8E, 0x8E, 2).valid(0, 0x8F, 0x8F, 3)
+            .valid(1, 0xA1, 0xFE, 0)
+            .valid(2, 0xA1, 0xDF, 0)
+            .valid(3, 0xA1, 0xFE, 1)
+            .build();
+
+    private static final MultiByteValidator EUC_KR = new MultiByteValidator("EUC-KR", 2, 0)
+            .valid(0, 0x00, 0x7F, 0).valid(0, 0xA1, 0xFE, 1)
+            .valid(1, 0xA1, 0xFE, 0)
+            .build();
+
+    private static final MultiByteValidator EUC_CN = new MultiByteValidator("EUC-CN", 2, 0)
+            .valid(0, 0x00, 0x7F, 0).valid(0, 0xA1, 0xF7, 1)
+            .valid(1, 0xA1, 0xFE, 0)
+            .build();
+
+    private static final MultiByteValidator EUC_TW = new MultiByteValidator("EUC-TW", 4, 0)
+            // 0x8E introduces a four-byte sequence: a CNS 11643 plane number, then a pair
+            .valid(0, 0x00, 0x7F, 0).valid(0, 0xA1, 0xFE, 1).valid(0, 0x8E, 0x8E, 2)
+            .valid(1, 0xA1, 0xFE, 0)
+            .valid(2, 0xA1, 0xB0, 3)
+            .valid(3, 0xA1, 0xFE, 1)
+            .build();
+
+    private static final MultiByteValidator GBK = new MultiByteValidator("GBK", 2, 0)
+            .valid(0, 0x00, 0x80, 0).valid(0, 0x81, 0xFE, 1)
+            .valid(1, 0x40, 0x7E, 0).valid(1, 0x80, 0xFE, 0)
+            .build();
+
+    private static final MultiByteValidator GB18030 = new MultiByteValidator("GB18030", 4, 0)
+            // A digit after the lead byte makes a four-byte sequence: lead, digit, lead, digit
+            .valid(0, 0x00, 0x80, 0).valid(0, 0x81, 0xFE, 1)
+            .valid(1, 0x40, 0x7E, 0).valid(1, 0x80, 0xFE, 0).valid(1, 0x30, 0x39, 2)
+            .valid(2, 0x81, 0xFE, 3)
+            .valid(3, 0x30, 0x39, 0)
+            .build();
+
+    private static final MultiByteValidator BIG5 = new MultiByteValidator("Big5", 2, 0)
+            .valid(0, 0x00, 0x80, 0).valid(0, 0x81, 0xFE, 1)
+            .valid(1, 0x40, 0x7E, 0).valid(1, 0xA1, 0xFE, 0)
+            .build();
+
+    /**
+     * States: 0 is single-byte, 1 and 2 are the first and second bytes of a double-byte character, and 3 is "don't
+     * know yet" (the start of a region other than the first), in which either shift byte is fine.
+     */
+    private static final MultiByteValidator EBCDIC_MIXED = new MultiByteValidator("EBCDIC mixed", 4, 3)
+            .valid(0, 0x00, 0xFF, 0).valid(0, 0x0E, 0x0E, 1).invalid(0, 0x0F, 0x0F, 0)
+            .invalid(1, 0x00, 0xFF, 1).valid(1, 0x40, 0xFE, 2).valid(1, 0x0F, 0x0F, 0)
+            .invalid(2, 0x00, 0xFF, 1).valid(2, 0x40, 0xFE, 1).invalid(2, 0x0F, 0x0F, 0)
+            .valid(3, 0x00, 0xFF, 3).valid(3, 0x0E, 0x0E, 1).valid(3, 0x0F, 0x0F, 0)
+            .build();
+
+    /** Validators by canonical charset name */
+    private static final HashMap<String, MultiByteValidator> FAMILIES = new HashMap<String, MultiByteValidator>();
+
+    static {
+        for (final String name : new String[] { "Shift_JIS", "windows-31j", "x-SJIS_0213", "x-MS932_0213", "x-PCK", "x-IBM942", "x-IBM942C", "x-IBM943", "x-IBM943C" }) {
+            FAMILIES.put(name, SHIFT_JIS);
+        }
+        for (final String name : new String[] { "EUC-JP", "x-euc-jp-linux", "x-eucJP-Open", "x-IBM29626C", "x-IBM33722" }) {
+            FAMILIES.put(name, EUC_JP);
+        }
+        for (final String name : new String[] { "EUC-KR", "x-IBM970" }) {
+            FAMILIES.put(name, EUC_KR);
+        }
+        for (final String name : new String[] { "GB2312", "x-IBM1383" }) {
+            FAMILIES.put(name, EUC_CN);
+        }
+        for (final String name : new String[] { "x-EUC-TW", "x-IBM964" }) {
+            FAMILIES.put(name, EUC_TW);
+        }
+        for (final String name : new String[] { "GBK", "x-mswin-936" }) {
+            FAMILIES.put(name, GBK);
+        }
+        FAMILIES.put("GB18030", GB18030);
+        for (final String name : new String[] { "Big5", "Big5-HKSCS", "x-Big5-HKSCS-2001", "x-Big5-Solaris", "x-windows-950", "x-MS950-HKSCS", "x-MS950-HKSCS-XP", "x-IBM950" }) {
+            FAMILIES.put(name, BIG5);
+        }
+        for (final String name : new String[] { "x-IBM930", "x-IBM933", "x-IBM935", "x-IBM937", "x-IBM939", "x-IBM1364", "x-IBM1371", "x-IBM1388", "x-IBM1390", "x-IBM1399" }) {
+            FAMILIES.put(name, EBCDIC_MIXED);
+        }
+    }
+
+    private static final Object NO_VALIDATOR = new Object();
+    private static final ConcurrentHashMap<String, Object> s_validators = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Looks up the validator for the given charset (by any of its names).
+     *
+     * @return the validator, or <tt>null</tt> if the charset isn't one of the multi-byte families covered here
+     */
+    static MultiByteValidator forCharset(final String _charsetName) {
+        Object validator = s_validators.get(_charsetName);
+        if (null == validator) {
+            final Charset cs = DecoderPool.getCharset(_charsetName);
+            validator = null == cs ? null : FAMILIES.get(cs.name());
+            if (null == validator) {
+                validator = NO_VALIDATOR;
+            }
+            s_validators.putIfAbsent(_charsetName, validator);
+        }
+        return NO_VALIDATOR == validator ? null : (MultiByteValidator) validator;
+    }
+
+    private final String m_name;
+    private final int m_resyncState;
+    /** Next state for each state and byte value, possibly with {@link #VIOLATION} set; -1 while still being built */
+    private final byte[][] m_transitions;
+
+    private MultiByteValidator(final String _name, final int _states, final int _resyncState) {
+        m_name = _name;
+        m_resyncState = _resyncState;
+        m_transitions = new byte[_states][256];
+        for (final byte[] row : m_transitions) {
+            Arrays.fill(row, (byte) -1);
+        }
+    }
+
+    /**
+     * Fills in the transitions that weren't given. In the initial state, any other byte is a violation. In any other
+     * state, the byte is a violation (the sequence was cut short) and is then taken as the start of a new sequence.
+     */
+    private MultiByteValidator build() {
+        for (int b = 0; b < 256; ++b) {
+            if (-1 == m_transitions[0][b]) {
+                m_transitions[0][b] = (byte) VIOLATION;
+            }
+        }
+        for (int state = 1; state < m_transitions.length; ++state) {
+            for (int b = 0; b < 256; ++b) {
+                if (-1 == m_transitions[state][b]) {
+                    m_transitions[state][b] = (byte) (m_transitions[0][b] | VIOLATION);
+                }
+            }
+        }
+        return this;
+    }
+
+    private MultiByteValidator invalid(final int _state, final int _from, final int _to, final int _next) {
+        Arrays.fill(m_transitions[_state], _from, _to + 1, (byte) (_next | VIOLATION));
+        return this;
+    }
+
+    /**
+     * Checks the first <tt>_len</tt> bytes of the sample. Each region is checked on its own; a sequence cut off by the
+     * end of a region is not a violation.
+     *
+     * @return <tt>false</tt> if the sample has too many invalid sequences for the charset to be a plausible candidate
+     */
+    boolean isPlausible(final Sample _sample, final int _len) {
+        final byte[] data = _sample.getData();
+        final byte[][] transitions = m_transitions;
+        int violations = 0;
+        int checked = 0;
+        for (int region = 0; region < _sample.getRegionCount(); ++region) {
+            final int start = _sample.getRegionStart(region);
+            final int end = Math.min(_len, _sample.getRegionEnd(region));
+            if (start >= end) {
+                break;
+            }
+            final int forgivenUntil = 0 == region ? start : start + RESYNC_BYTES;
+            int state = 0 == region ? 0 : m_resyncState;
+            for (int i = start; i < end; ++i) {
+                final int next = transitions[state][data[i] & 0xff] & 0xff;
+                state = next & ~VIOLATION;
+                if (0 != (next & VIOLATION) && i >= forgivenUntil && ++violations > MIN_VIOLATIONS && violations > (checked + i - start + 1) * MAX_VIOLATION_RATE) {
+                    return false;
+                }
+            }
+            checked += end - start;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the charset switches between single- and double-byte modes with shift-out/shift-in bytes
+     */
+    boolean isShiftBased() {
+        return this == EBCDIC_MIXED;
+    }
+
+    @Override
+    public String toString() {
+        return m_name;
+    }
+
+    private MultiByteValidator valid(final int _state, final int _from, final int _to, final int _next) {
+        Arrays.fill(m_transitions[_state], _from, _to + 1, (byte) _next);
+        return this;
+    }
+}
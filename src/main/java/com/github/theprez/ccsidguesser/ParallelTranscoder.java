@@ -0,0 +1,277 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts a file to UTF-8 on several threads. The input is read, in order, in large chunks; each chunk is converted
+ * into its own buffer on a pool thread, and the buffers are written to the output, in order, with positional writes.
+ * At most a fixed number of chunks are in flight at once, so memory use is bounded no matter how big the file is.
+ * <p>
+ * Chunks can only be converted independently if each one starts where a decoder would be in its initial state, so
+ * chunk boundaries are moved back to safe points:
+ * <ul>
+ * <li>single-byte charsets: anywhere</li>
+ * <li>UTF-8: the start of a character</li>
+ * <li>the ASCII-based multi-byte charsets (Shift-JIS, EUC, GBK, Big5, ...): just after a line feed</li>
+ * <li>the mixed EBCDIC charsets: just after a new line or line feed that isn't inside a shift-out/shift-in pair</li>
+ * </ul>
+ * Anything else (or a chunk with no safe point in it) is converted sequentially from there on.
+ */
+final class ParallelTranscoder {
+
+    /** How the input can be split */
+    private enum Splitting {
+        ANYWHERE, UTF8, AFTER_LINE_FEED, AFTER_SBCS_NEW_LINE, NONE
+    }
+
+    /** Largest chunk size; smaller chunks are used if the memory limit calls for them */
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    /**
+     * How much memory a chunk may take up, as a multiple of its size: the input, plus output that can be up to three
+     * times as big (a single byte can become a three-byte UTF-8 sequence)
+     */
+    private static final int MEMORY_PER_CHUNK_BYTE = 4;
+
+    private static final byte EBCDIC_SHIFT_OUT = 0x0E;
+    private static final byte EBCDIC_SHIFT_IN = 0x0F;
+    private static final byte EBCDIC_NEW_LINE = 0x15;
+    private static final byte EBCDIC_LINE_FEED = 0x25;
+
+    /**
+     * A growable in-memory channel that a chunk is converted into.
+     */
+    private static class ChunkOutput implements WritableByteChannel {
+        private byte[] m_buf;
+        private int m_count = 0;
+
+        ChunkOutput(final int _size) {
+            m_buf = new byte[_size];
+        }
+
+        ByteBuffer asBuffer() {
+            return ByteBuffer.wrap(m_buf, 0, m_count);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int write(final ByteBuffer _src) {
+            final int len = _src.remaining();
+            if (m_buf.length - m_count < len) {
+                m_buf = Arrays.copyOf(m_buf, Math.max(m_count + len, 2 * m_buf.length));
+            }
+            _src.get(m_buf, m_count, len);
+            m_count += len;
+            return len;
+        }
+    }
+
+    private static Splitting getSplitting(final String _encoding) {
+        if (null != SingleByteTable.forCharset(_encoding)) {
+            return Splitting.ANYWHERE;
+        }
+        final MultiByteValidator validator = MultiByteValidator.forCharset(_encoding);
+        if (null != validator) {
+            return validator.isShiftBased() ? Splitting.AFTER_SBCS_NEW_LINE : Splitting.AFTER_LINE_FEED;
+        }
+        if (null != DecoderPool.getCharset(_encoding) && "UTF-8".equals(DecoderPool.getCharset(_encoding).name())) {
+            return Splitting.UTF8;
+        }
+        return Splitting.NONE;
+    }
+
+    private final int m_chunkSize;
+    private final String m_encoding;
+    private final int m_maxInFlight;
+    private final Splitting m_splitting;
+    private final int m_threads;
+    private final ThreadLocal<Transcoder> m_transcoders;
+
+    /**
+     * @param _encoding
+     *            the Java name of the charset the data is in
+     * @param _threads
+     *            how many threads to convert on
+     * @param _maxMemory
+     *            roughly the most memory, in bytes, that chunks in flight may take up
+     */
+    ParallelTranscoder(final String _encoding, final int _threads, final long _maxMemory) throws IOException {
+        if (null == DecoderPool.getCharset(_encoding)) {
+            throw new IOException("Unsupported encoding: " + _encoding);
+        }
+        m_encoding = _encoding;
+        m_threads = _threads;
+        m_splitting = getSplitting(_encoding);
+        m_chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, _maxMemory / (MEMORY_PER_CHUNK_BYTE * _threads)));
+        m_maxInFlight = (int) Math.max(1, _maxMemory / ((long) MEMORY_PER_CHUNK_BYTE * m_chunkSize));
+        m_transcoders = new ThreadLocal<Transcoder>() {
+            @Override
+            protected Transcoder initialValue() {
+                try {
+                    return new Transcoder(m_encoding);
+                } catch (final IOException e) {
+                    // can't happen; the charset was looked up above
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Converts a chunk on the current thread.
+     */
+    private ChunkOutput convert(final ByteBuffer _chunk) throws IOException {
+        final ChunkOutput ret = new ChunkOutput(_chunk.remaining() + _chunk.remaining() / 2);
+        final Transcoder transcoder = m_transcoders.get();
+        transcoder.reset();
+        Stats.add(Stats.Counter.BYTES_CONVERTED, _chunk.remaining());
+        transcoder.finish(_chunk, ret);
+        return ret;
+    }
+
+    /**
+     * Finds where to end a chunk that was read in full (with more data after it).
+     *
+     * @return the length of the chunk, or -1 if there's nowhere safe to split it
+     */
+    private int findSplit(final ByteBuffer _buf) {
+        final int len = _buf.limit();
+        switch (m_splitting) {
+            case ANYWHERE:
+                return len;
+            case UTF8:
+                // back off past continuation bytes to the start of a character
+                for (int i = len - 1; i >= len - 4 && i > 0; --i) {
+                    if (0x80 != (_buf.get(i) & 0xC0)) {
+                        return i;
+                    }
+                }
+                return len;
+            case AFTER_LINE_FEED:
+                for (int i = len - 1; i >= 0; --i) {
+                    if ('\n' == _buf.get(i)) {
+                        return i + 1;
+                    }
+                }
+                return -1;
+            case AFTER_SBCS_NEW_LINE: {
+                // The chunk starts in single-byte mode, and double-byte characters never contain a shift, new line, or
+                // line feed byte, so a line end is safe if the nearest shift before it is a shift-in (or there's none)
+                int i = len - 1;
+                while (i >= 0) {
+                    final byte b = _buf.get(i);
+                    if (EBCDIC_NEW_LINE != b && EBCDIC_LINE_FEED != b) {
+                        --i;
+                        continue;
+                    }
+                    int j = i - 1;
+                    while (j >= 0 && EBCDIC_SHIFT_OUT != _buf.get(j) && EBCDIC_SHIFT_IN != _buf.get(j)) {
+                        --j;
+                    }
+                    if (0 > j || EBCDIC_SHIFT_IN == _buf.get(j)) {
+                        return i + 1;
+                    }
+                    // inside a double-byte run; look for a line end before it started
+                    i = j - 1;
+                }
+                return -1;
+            }
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Reads <tt>_in</tt>, from its current position, and writes it to <tt>_out</tt>, from its current position, as UTF-8.
+     */
+    void transcode(final FileChannel _in, final FileChannel _out) throws IOException {
+        long inPos = _in.position();
+        long outPos = _out.position();
+        final long inEnd = _in.size();
+        if (Splitting.NONE == m_splitting || 1 >= m_threads || inEnd - inPos <= m_chunkSize) {
+            m_transcoders.get().transcode(_in, _out);
+            return;
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+        final LinkedList<Future<ChunkOutput>> pending = new LinkedList<Future<ChunkOutput>>();
+        try {
+            boolean splittable = true;
+            while (splittable && inPos < inEnd) {
+                final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(m_chunkSize, inEnd - inPos));
+                while (buf.hasRemaining() && -1 != _in.read(buf, inPos + buf.position())) {
+                    // keep reading
+                }
+                buf.flip();
+                final boolean last = inPos + buf.limit() >= inEnd;
+                final int len = last ? buf.limit() : findSplit(buf);
+                if (0 >= len) {
+                    // nowhere safe to split; what's left is converted sequentially, below
+                    splittable = false;
+                    break;
+                }
+                buf.limit(len);
+                inPos += len;
+                if (pending.size() >= m_maxInFlight) {
+                    outPos = write(pending.removeFirst(), _out, outPos);
+                }
+                pending.add(pool.submit(() -> convert(buf)));
+            }
+            while (!pending.isEmpty()) {
+                outPos = write(pending.removeFirst(), _out, outPos);
+            }
+            if (inPos < inEnd) {
+                _in.position(inPos);
+                _out.position(outPos);
+                m_transcoders.get().transcode(_in, _out);
+            }
+        } finally {
+            for (final Future<ChunkOutput> future : pending) {
+                future.cancel(true);
+            }
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Waits for a chunk's conversion and writes it at the given position.
+     *
+     * @return the position just past what was written
+     */
+    private long write(final Future<ChunkOutput> _chunk, final FileChannel _out, final long _pos) throws IOException {
+        final ByteBuffer converted;
+        try {
+            converted = _chunk.get().asBuffer();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while converting");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        long pos = _pos;
+        while (converted.hasRemaining()) {
+            pos += _out.write(converted, pos);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.theprez.ccsidguesser;
+
+/**
+ * The bytes that detection looks at. A sample is usually one contiguous run from the start of the data, but it may be
+ * made of several regions taken from different parts of a file (see {@link SampleReader}). Regions are stored back to
+ * back; since a region may start or end in the middle of a multi-byte character, decoders are restarted at each
+ * region boundary.
+ */
+public final class Sample {
+
+    private final byte[] m_data;
+    private final boolean m_endsAtEof;
+    private final int[] m_regionStarts;
+    private final boolean m_truncated;
+
+    /**
+     * A single-region sample.
+     *
+     * @param _data
+     *            the bytes (exactly; there is no padding)
+     * @param _truncated
+     *            whether the data continues past the end of the sample
+     */
+    public Sample(final byte[] _data, final boolean _truncated) {
+        this(_data, new int[] { 0 }, _truncated, !_truncated);
+    }
+
+    /**
+     * @param _data
+     *            the bytes of all regions, back to back
+     * @param _regionStarts
+     *            the offset into <tt>_data</tt> at which each region starts (the first is always zero)
+     * @param _truncated
+     *            whether the sample leaves out any of the data
+     * @param _endsAtEof
+     *            whether the last region runs up to the end of the data
+     */
+    Sample(final byte[] _data, final int[] _regionStarts, final boolean _truncated, final boolean _endsAtEof) {
+        m_data = _data;
+        m_regionStarts = _regionStarts;
+        m_truncated = _truncated;
+        m_endsAtEof = _endsAtEof;
+    }
+
+    public byte[] getData() {
+        return m_data;
+    }
+
+    public int getLength() {
+        return m_data.length;
+    }
+
+    int getRegionCount() {
+        return m_regionStarts.length;
+    }
+
+    /**
+     * The offset just past the end of the given region.
+     */
+    int getRegionEnd(final int _region) {
+        return _region + 1 < m_regionStarts.length ? m_regionStarts[_region + 1] : m_data.length;
+    }
+
+    int getRegionStart(final int _region) {
+        return m_regionStarts[_region];
+    }
+
+    /**
+     * Whether the last region runs up to the end of the data, so that a multi-byte sequence left incomplete at the end
+     * really is invalid.
+     */
+    public boolean endsAtEof() {
+        return m_endsAtEof;
+    }
+
+    /**
+     * Whether the sample leaves out any of the data.
+     */
+    public boolean isTruncated() {
+        return m_truncated;
+    }
+}
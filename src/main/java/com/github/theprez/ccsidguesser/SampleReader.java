@@ -0,0 +1,115 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Reads {@link Sample}s from files.
+ */
+final class SampleReader {
+
+    /**
+     * Where in a file the sample is taken from.
+     */
+    enum SamplingMode {
+        /** The first <i>n</i> bytes of the file */
+        HEAD,
+        /** The head, evenly-spaced blocks from the middle, and the tail of the file */
+        SPREAD
+    }
+
+    /** Number of blocks taken from the middle of the file in {@link SamplingMode#SPREAD} mode */
+    private static final int MIDDLE_BLOCKS = 8;
+
+    /**
+     * Region offsets are kept at multiples of this, so that UTF-16 and UTF-32 data stays aligned from one region to the
+     * next.
+     */
+    private static final int REGION_ALIGNMENT = 4;
+
+    /**
+     * Reads a sample of (at most) <tt>_sampleSize</tt> bytes. The sample holds exactly the bytes read; short files are
+     * not padded.
+     */
+    static Sample read(final File _file, final int _sampleSize, final SamplingMode _mode) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(_file, "r"); FileChannel channel = raf.getChannel()) {
+            return read(channel, _sampleSize, _mode);
+        }
+    }
+
+    /**
+     * Reads a sample from an open file. A head sample (the only kind with a single region) is read from the channel's
+     * current position, and leaves the channel positioned just past it; other samples don't move the channel.
+     */
+    static Sample read(final FileChannel _channel, final int _sampleSize, final SamplingMode _mode) throws IOException {
+        final long size = _channel.size();
+        if (SamplingMode.HEAD == _mode || size <= _sampleSize) {
+            return readHead(_channel, _sampleSize, size);
+        }
+        return readSpread(_channel, _sampleSize, size);
+    }
+
+    private static long alignDown(final long _offset) {
+        return _offset - (_offset % REGION_ALIGNMENT);
+    }
+
+    private static Sample readHead(final FileChannel _channel, final int _sampleSize, final long _size) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(_sampleSize, _size));
+        while (buf.hasRemaining()) {
+            if (-1 == _channel.read(buf)) {
+                break;
+            }
+        }
+        final byte[] data = buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+        return new Sample(data, data.length < _size);
+    }
+
+    /**
+     * Takes a quarter of the sample from the head, a quarter from the tail, and the rest from blocks spread evenly
+     * through the middle. Each region is memory-mapped on its own, so only the sampled bytes are ever copied.
+     */
+    private static Sample readSpread(final FileChannel _channel, final int _sampleSize, final long _size) throws IOException {
+        final int headLen = (int) alignDown(_sampleSize / 4);
+        final int tailLen = (int) alignDown(_sampleSize / 4);
+        final int blockLen = (int) alignDown((_sampleSize - headLen - tailLen) / MIDDLE_BLOCKS);
+        final long tailStart = alignDown(_size - tailLen);
+        final long middleSpan = tailStart - headLen;
+
+        final long[] offsets = new long[MIDDLE_BLOCKS + 2];
+        final int[] lengths = new int[MIDDLE_BLOCKS + 2];
+        offsets[0] = 0;
+        lengths[0] = headLen;
+        for (int i = 0; i < MIDDLE_BLOCKS; ++i) {
+            // center each block in its own slice of the middle of the file
+            final long sliceStart = headLen + (middleSpan * i) / MIDDLE_BLOCKS;
+            offsets[1 + i] = alignDown(sliceStart + Math.max(0, (middleSpan / MIDDLE_BLOCKS - blockLen) / 2));
+            lengths[1 + i] = blockLen;
+        }
+        offsets[MIDDLE_BLOCKS + 1] = tailStart;
+        lengths[MIDDLE_BLOCKS + 1] = (int) (_size - tailStart);
+
+        int total = 0;
+        for (final int len : lengths) {
+            total += len;
+        }
+        final byte[] data = new byte[total];
+        final int[] regionStarts = new int[offsets.length];
+        int pos = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            regionStarts[i] = pos;
+            final MappedByteBuffer mapped = _channel.map(MapMode.READ_ONLY, offsets[i], lengths[i]);
+            mapped.get(data, pos, lengths[i]);
+            pos += lengths[i];
+        }
+        return new Sample(data, regionStarts, true, true);
+    }
+
+    private SampleReader() {
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Splits data that was put together from several sources (a log with some lines in Cp037 and some in Cp1252, say) into
+ * segments that each seem to be in a single encoding.
+ * <p>
+ * Every candidate keeps a running score over a sliding window of the most recent bytes: the sum of the character
+ * validity weights of what the bytes in the window decode to, which (divided by the number of characters) is the same
+ * measure {@link CcsidConfidenceScorer} uses for a whole sample. As each byte comes in, its weight is added and the
+ * weight of the byte leaving the window is taken off, so the work per byte is constant for each candidate, and a whole
+ * file is scanned in linear time. Candidates are limited to the single-byte charsets, whose weight per byte is a table
+ * lookup, and UTF-8, whose weights are found by a small state machine.
+ * <p>
+ * When another candidate takes a clear lead and keeps it for half a window, a new segment starts. Its start is put at the
+ * point that best separates the two encodings, preferring the start of a line; the last two windows of bytes are kept
+ * so that point can still be looked for once the change is certain.
+ */
+final class Segmenter {
+
+    /**
+     * A range of bytes that seems to be in a single encoding.
+     */
+    static final class Segment {
+        private final String m_charset;
+        private final long m_end;
+        private final long m_start;
+
+        Segment(final long _start, final long _end, final String _charset) {
+            m_start = _start;
+            m_end = _end;
+            m_charset = _charset;
+        }
+
+        String getCharset() {
+            return m_charset;
+        }
+
+        int getCcsid() {
+            return CcsidUtils.unknownStringToCCSID(m_charset);
+        }
+
+        /** @return the offset just past the last byte of the segment */
+        long getEnd() {
+            return m_end;
+        }
+
+        /** @return the offset of the first byte of the segment */
+        long getStart() {
+            return m_start;
+        }
+    }
+
+    static final int DEFAULT_WINDOW = 4 * 1024;
+    static final int MIN_WINDOW = 64;
+
+    /** Character weights are turned into integers (so running sums never drift) by multiplying by this */
+    private static final int WEIGHT_SCALE = 1024;
+    /**
+     * A UTF-8 character is spread over its bytes, each byte getting this many units divided by the length of the
+     * character (which divides evenly for every length from 1 to 4)
+     */
+    private static final int UTF8_UNITS = 12;
+    /**
+     * How far ahead of the current candidate another has to be (in average weight per character) to take over. Keeps
+     * near-identical charsets from trading the lead back and forth.
+     */
+    private static final double MIN_LEAD = 0.01;
+    /** How many characters' worth of score a segment boundary may give up to fall at the start of a line */
+    private static final int BOUNDARY_SLACK = 16;
+
+    /**
+     * Picks the candidates that can be scored a byte at a time: the single-byte charsets and UTF-8, each only once (by
+     * the first of its names in the list).
+     */
+    static List<String> getCandidates(final Collection<String> _charsets) {
+        final List<String> ret = new ArrayList<String>();
+        final HashSet<String> seen = new HashSet<String>();
+        for (final String name : _charsets) {
+            final Charset cs = DecoderPool.getCharset(name);
+            if (null == cs || !seen.add(cs.name())) {
+                continue;
+            }
+            if ("UTF-8".equals(cs.name()) || null != SingleByteTable.forCharset(name)) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isLineEnd(final byte _b) {
+        // ASCII line feed, EBCDIC new line, EBCDIC line feed
+        return 0x0A == _b || 0x15 == _b || 0x25 == _b;
+    }
+
+    private final String[] m_candidates;
+    private int m_current = -1;
+    private long m_currentStart = 0;
+    private final int m_history;
+    private int m_pending = -1;
+    private long m_pendingSince = 0;
+    private long m_pos = 0;
+    /** The last {@link #m_history} bytes */
+    private final byte[] m_ring;
+    private final List<Segment> m_segments = new ArrayList<Segment>();
+    private final int m_step;
+    private final long[] m_sums;
+    /** Each single-byte candidate's weight for each byte value; <tt>null</tt> for UTF-8 */
+    private final int[][] m_tables;
+    private int m_utf8CodePoint = 0;
+    /** Each byte's share of the weight of the UTF-8 character it belongs to, in units (see {@link #UTF8_UNITS}) */
+    private final int[] m_utf8Hits;
+    private int m_utf8Index = -1;
+    private int m_utf8Needed = 0;
+    private int m_utf8SequenceLength = 0;
+    /** Each byte's share of the UTF-8 character it belongs to, in units; 0 until the character is complete */
+    private final int[] m_utf8Units;
+    private long m_utf8UnitSum = 0;
+    private final CharacterWeights m_weights;
+    private final int m_window;
+
+    /**
+     * @param _candidates
+     *            the candidates (from {@link #getCandidates(Collection)}), in order of preference; ties go to the
+     *            earlier one
+     * @param _window
+     *            the window size, in bytes
+     */
+    Segmenter(final List<String> _candidates, final CharacterWeights _weights, final int _window) {
+        m_candidates = _candidates.toArray(new String[0]);
+        m_weights = _weights;
+        m_window = Math.max(MIN_WINDOW, _window);
+        m_step = Math.max(1, m_window / 64);
+        m_history = 2 * m_window;
+        m_ring = new byte[m_history];
+        m_sums = new long[m_candidates.length];
+        m_tables = new int[m_candidates.length][];
+        for (int c = 0; c < m_candidates.length; ++c) {
+            final SingleByteTable table = SingleByteTable.forCharset(m_candidates[c]);
+            if (null == table) {
+                m_utf8Index = c;
+                continue;
+            }
+            m_tables[c] = new int[256];
+            for (int b = 0; b < 256; ++b) {
+                m_tables[c][b] = scale(table.decode(b));
+            }
+        }
+        m_utf8Hits = -1 == m_utf8Index ? null : new int[m_history];
+        m_utf8Units = -1 == m_utf8Index ? null : new int[m_history];
+    }
+
+    /**
+     * Looks at the window the candidates were last scored on, and checks whether the leader has changed.
+     */
+    private void check() {
+        final int leader = getLeader();
+        if (-1 == m_current) {
+            m_current = leader;
+            return;
+        }
+        if (leader == m_current) {
+            m_pending = -1;
+            return;
+        }
+        if (-1 == m_pending) {
+            m_pendingSince = m_pos;
+        }
+        // Similar charsets may trade the lead while the change is pending; that's still the same change
+        m_pending = leader;
+        if (m_pos - m_pendingSince >= m_window / 2) {
+            commitPending(findBoundary(m_current, m_pending));
+        }
+    }
+
+    private void commitPending(final long _boundary) {
+        m_segments.add(new Segment(m_currentStart, _boundary, m_candidates[m_current]));
+        m_currentStart = _boundary;
+        m_current = m_pending;
+        m_pending = -1;
+    }
+
+    /**
+     * Finds where the data goes from being in one encoding to the other, somewhere in the window the change was first
+     * seen in or after it: the point that maximizes the score of the bytes before it in the first encoding plus that of
+     * the bytes after it in the second. Bytes near the change often decode sensibly either way, so the start of a line
+     * that does almost as well is taken instead, if there is one.
+     */
+    private long findBoundary(final int _from, final int _to) {
+        final long windowStart = Math.max(m_currentStart, Math.max(m_pos - m_history, m_pendingSince - m_window));
+        long best = windowStart;
+        long bestScore = 0;
+        long score = 0;
+        for (long p = windowStart; p < m_pos; ++p) {
+            final int slot = (int) (p % m_history);
+            score += getWeight(_from, slot) - getWeight(_to, slot);
+            if (score > bestScore) {
+                best = p + 1;
+                bestScore = score;
+            }
+        }
+        long lineStart = -1;
+        score = 0;
+        for (long p = windowStart; p < m_pos; ++p) {
+            final int slot = (int) (p % m_history);
+            score += getWeight(_from, slot) - getWeight(_to, slot);
+            if (isLineEnd(m_ring[slot]) && bestScore - score <= BOUNDARY_SLACK * WEIGHT_SCALE && (-1 == lineStart || Math.abs(p + 1 - best) < Math.abs(lineStart - best))) {
+                lineStart = p + 1;
+            }
+        }
+        return -1 == lineStart ? best : lineStart;
+    }
+
+    /**
+     * Checks the last of the data and returns the segments.
+     */
+    List<Segment> finish() {
+        if (-1 == m_current) {
+            // less than a window's worth of data
+            m_current = getLeader();
+        } else if (-1 != m_pending && m_pending == getLeader()) {
+            final long boundary = findBoundary(m_current, m_pending);
+            if (m_pos - boundary >= m_window / 2) {
+                commitPending(boundary);
+            }
+        }
+        if (-1 != m_current) {
+            m_segments.add(new Segment(m_currentStart, m_pos, m_candidates[m_current]));
+        }
+        return Collections.unmodifiableList(m_segments);
+    }
+
+    /**
+     * @return the candidate with the highest average weight over the window, keeping the current one unless another
+     *         is clearly ahead of it
+     */
+    private int getLeader() {
+        int leader = 0;
+        double best = getRate(0);
+        for (int c = 1; c < m_sums.length; ++c) {
+            final double rate = getRate(c);
+            if (rate > best) {
+                leader = c;
+                best = rate;
+            }
+        }
+        if (-1 != m_current && best - getRate(m_current) < MIN_LEAD) {
+            return m_current;
+        }
+        return leader;
+    }
+
+    /**
+     * @return the candidate's average weight per character over the window
+     */
+    private double getRate(final int _candidate) {
+        if (_candidate == m_utf8Index) {
+            return 0 == m_utf8UnitSum ? 0 : m_sums[_candidate] / ((double) WEIGHT_SCALE * m_utf8UnitSum);
+        }
+        return 0 == m_pos ? 0 : m_sums[_candidate] / ((double) WEIGHT_SCALE * Math.min(m_pos, m_window));
+    }
+
+    /**
+     * @return the weight the candidate gives the byte in the given slot; for UTF-8, the weight of the character the byte
+     *         belongs to, so every byte counts the same however long its character is
+     */
+    private int getWeight(final int _candidate, final int _slot) {
+        if (_candidate == m_utf8Index) {
+            return 0 == m_utf8Units[_slot] ? 0 : m_utf8Hits[_slot] / m_utf8Units[_slot];
+        }
+        return m_tables[_candidate][m_ring[_slot] & 0xff];
+    }
+
+    private int scale(final char _c) {
+        return (int) Math.round(WEIGHT_SCALE * m_weights.getWeight(_c));
+    }
+
+    /**
+     * Scores the next of the data.
+     */
+    void update(final ByteBuffer _buf) {
+        final int[][] tables = m_tables;
+        final long[] sums = m_sums;
+        final int n = sums.length;
+        while (_buf.hasRemaining()) {
+            final int b = _buf.get() & 0xff;
+            final int slot = (int) (m_pos % m_history);
+            final boolean full = m_pos >= m_window;
+            // the byte leaving the window
+            final int oldSlot = (int) ((m_pos + m_window) % m_history);
+            final int old = m_ring[oldSlot] & 0xff;
+            for (int c = 0; c < n; ++c) {
+                final int[] table = tables[c];
+                if (null != table) {
+                    sums[c] += full ? table[b] - table[old] : table[b];
+                }
+            }
+            m_ring[slot] = (byte) b;
+            if (-1 != m_utf8Index) {
+                if (full) {
+                    sums[m_utf8Index] -= m_utf8Hits[oldSlot];
+                    m_utf8UnitSum -= m_utf8Units[oldSlot];
+                }
+                updateUtf8(b, slot);
+            }
+            m_pos++;
+            if (m_pos >= m_window && 0 == m_pos % m_step) {
+                check();
+            }
+        }
+    }
+
+    /**
+     * Runs the UTF-8 state machine over one byte. A multi-byte character isn't counted until its last byte arrives; then
+     * it's spread over all of its bytes (which are still in the window, since that's never smaller than a character).
+     * Each byte of a broken sequence counts as a character of its own, with no weight.
+     */
+    private void updateUtf8(final int _b, final int _slot) {
+        m_utf8Hits[_slot] = 0;
+        m_utf8Units[_slot] = 0;
+        if (0 < m_utf8Needed) {
+            if (0x80 == (_b & 0xC0)) {
+                m_utf8CodePoint = (m_utf8CodePoint << 6) | (_b & 0x3F);
+                m_utf8SequenceLength++;
+                if (0 == --m_utf8Needed) {
+                    final int weight = Character.MAX_VALUE >= m_utf8CodePoint ? scale((char) m_utf8CodePoint) : scale(Character.highSurrogate(m_utf8CodePoint));
+                    spreadUtf8(_slot, m_utf8SequenceLength, weight);
+                }
+                return;
+            }
+            // cut short; the bytes so far are each a bad character
+            for (int i = 1; i <= m_utf8SequenceLength; ++i) {
+                spreadUtf8((_slot - i + m_history) % m_history, 1, 0);
+            }
+            m_utf8Needed = 0;
+        }
+        m_utf8SequenceLength = 1;
+        if (0x80 > _b) {
+            spreadUtf8(_slot, 1, scale((char) _b));
+        } else if (0xC2 <= _b && 0xDF >= _b) {
+            m_utf8Needed = 1;
+            m_utf8CodePoint = _b & 0x1F;
+        } else if (0xE0 <= _b && 0xEF >= _b) {
+            m_utf8Needed = 2;
+            m_utf8CodePoint = _b & 0x0F;
+        } else if (0xF0 <= _b && 0xF4 >= _b) {
+            m_utf8Needed = 3;
+            m_utf8CodePoint = _b & 0x07;
+        } else {
+            // a stray continuation byte, or one that never starts a character
+            spreadUtf8(_slot, 1, 0);
+        }
+    }
+
+    /**
+     * Counts a UTF-8 character that ends in the given slot.
+     */
+    private void spreadUtf8(final int _lastSlot, final int _length, final int _weight) {
+        final int units = UTF8_UNITS / _length;
+        for (int i = 0; i < _length; ++i) {
+            final int slot = (_lastSlot - i + m_history) % m_history;
+            m_utf8Hits[slot] = _weight * units;
+            m_utf8Units[slot] = units;
+        }
+        m_sums[m_utf8Index] += _weight * UTF8_UNITS;
+        m_utf8UnitSum += UTF8_UNITS;
+    }
+}
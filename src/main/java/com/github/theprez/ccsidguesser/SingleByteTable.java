@@ -0,0 +1,132 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A 256-entry decode table for a single-byte, stateless charset. For such charsets, the confidence score of a sample is
+ * fully determined by the sample's byte histogram, so scoring is a 256-element dot product instead of a full decode.
+ */
+final class SingleByteTable {
+
+    private static final Object NOT_SINGLE_BYTE = new Object();
+    private static final ConcurrentHashMap<String, Object> s_tables = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Looks up (building and caching on first use) the table for the given charset.
+     *
+     * @return the table, or <tt>null</tt> if the charset is not a stateless single-byte charset
+     */
+    static SingleByteTable forCharset(final String _charsetName) {
+        Object table = s_tables.get(_charsetName);
+        if (null == table) {
+            table = build(_charsetName);
+            s_tables.putIfAbsent(_charsetName, table);
+        }
+        return NOT_SINGLE_BYTE == table ? null : (SingleByteTable) table;
+    }
+
+    private static Object build(final String _charsetName) {
+        try {
+            final Charset cs = DecoderPool.getCharset(_charsetName);
+            if (null == cs) {
+                return NOT_SINGLE_BYTE;
+            }
+            final CharsetDecoder decoder = cs.newDecoder();
+            decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            // Every byte value must decode, on its own, to exactly one char. This rules out multi-byte charsets (whose
+            // lead bytes are malformed on their own) and shift-based charsets (whose shift bytes decode to nothing).
+            final char[] decoded = new char[256];
+            final byte[] all = new byte[256];
+            for (int i = 0; i < 256; ++i) {
+                all[i] = (byte) i;
+                final CharBuffer cb = decoder.decode(ByteBuffer.wrap(new byte[] { (byte) i }));
+                if (1 != cb.remaining()) {
+                    return NOT_SINGLE_BYTE;
+                }
+                decoded[i] = cb.get();
+            }
+            // ...and decoding them all in one go must give the same answer (no state carried from one byte to the next)
+            final CharBuffer cb = decoder.decode(ByteBuffer.wrap(all));
+            if (256 != cb.remaining()) {
+                return NOT_SINGLE_BYTE;
+            }
+            for (int i = 0; i < 256; ++i) {
+                if (decoded[i] != cb.get(i)) {
+                    return NOT_SINGLE_BYTE;
+                }
+            }
+            return new SingleByteTable(decoded);
+        } catch (final Exception e) {
+            return NOT_SINGLE_BYTE;
+        }
+    }
+
+    /**
+     * Builds the byte histogram of the first <tt>_len</tt> bytes of a sample, for use with {@link #getHits(int[], CharacterWeights)}.
+     */
+    static int[] histogram(final byte[] _data, final int _len) {
+        final int[] histogram = new int[256];
+        for (int i = 0; i < _len; ++i) {
+            histogram[_data[i] & 0xff]++;
+        }
+        return histogram;
+    }
+
+    private final char[] m_decoded;
+    private volatile byte[][] m_utf8 = null;
+
+    private SingleByteTable(final char[] _decoded) {
+        m_decoded = _decoded;
+    }
+
+    /**
+     * The UTF-8 byte sequence for each byte value, built on first use. Bytes the charset can't map decode to U+FFFD,
+     * and so come out as <tt>EF BF BD</tt>.
+     */
+    byte[][] getUtf8Table() {
+        byte[][] ret = m_utf8;
+        if (null == ret) {
+            ret = new byte[256][];
+            for (int i = 0; i < 256; ++i) {
+                ret[i] = String.valueOf(m_decoded[i]).getBytes(StandardCharsets.UTF_8);
+            }
+            m_utf8 = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * The char that the given byte value decodes to.
+     */
+    char decode(final int _b) {
+        return m_decoded[_b & 0xff];
+    }
+
+    /**
+     * The number of "hits" (sum of character validity weights) for data with the given (running) histogram.
+     */
+    double getHits(final long[] _histogram, final CharacterWeights _weights) {
+        final long[] tally = _weights.newTally();
+        for (int i = 0; i < 256; ++i) {
+            tally[_weights.getWeightClass(m_decoded[i])] += _histogram[i];
+        }
+        return _weights.getHits(tally);
+    }
+
+    /**
+     * The number of "hits" (sum of character validity weights) for a sample with the given histogram.
+     */
+    double getHits(final int[] _histogram, final CharacterWeights _weights) {
+        final long[] histogram = new long[256];
+        for (int i = 0; i < 256; ++i) {
+            histogram[i] = _histogram[i];
+        }
+        return getHits(histogram, _weights);
+    }
+}
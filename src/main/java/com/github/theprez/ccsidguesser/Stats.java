@@ -0,0 +1,265 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and per-phase timers. Collection is off until {@link #setEnabled(boolean)} turns it on; while
+ * it's off, every call here returns after a single flag check, and timers aren't even created.
+ * <p>
+ * When the guesser is embedded as a library, monitoring can poll {@link #snapshot()} at any time, from any thread.
+ */
+public final class Stats {
+
+    /** The things that are counted */
+    public enum Counter {
+        /** Files (or streams) processed */
+        FILES("files"),
+        /** Archive members sampled and scored (with <tt>--archives</tt>) */
+        ARCHIVE_MEMBERS("archiveMembers"),
+        /** Bytes read into samples */
+        BYTES_READ("bytesRead"),
+        /** Files answered from the cache */
+        CACHE_HITS("cacheHits"),
+        /** Files (or streams) classified as binary, with no scoring */
+        BINARY_FILES("binaryFiles"),
+        /** Samples settled by the structural checks (or a BOM), with no scoring */
+        STRUCTURAL_GUESSES("structuralGuesses"),
+        /** Charsets scored against a sample (each stage of staged scoring counts separately) */
+        CHARSETS_SCORED("charsetsScored"),
+        /** Charsets ruled out because the sample didn't decode */
+        DECODE_FAILURES("decodeFailures"),
+        /** Multi-byte charsets ruled out by their byte-level validator, with no decoding */
+        VALIDATOR_REJECTIONS("validatorRejections"),
+        /** Bytes converted to UTF-8 */
+        BYTES_CONVERTED("bytesConverted");
+
+        private final String m_key;
+
+        Counter(final String _key) {
+            m_key = _key;
+        }
+    }
+
+    /** The phases that are timed */
+    public enum Phase {
+        /** Reading samples */
+        READ("read"),
+        /** Looking up a file's current CCSID tag (the <tt>attr</tt> command) */
+        TAG_LOOKUP("tagLookup"),
+        /** Building the candidate list from the charsets the JVM supports */
+        CHARSET_ENUMERATION("charsetEnumeration"),
+        /** The structural checks: binary data, ASCII/UTF-8, UTF-16, and UTF-32 */
+        STRUCTURAL("structural"),
+        /** Scoring candidates, decoding included */
+        SCORE("score"),
+        /** The part of {@link #SCORE} spent in charset decoders */
+        DECODE("decode"),
+        /** Converting to UTF-8 */
+        CONVERT("convert"),
+        /** Setting a file's CCSID tag (the <tt>setccsid</tt> command) */
+        TAG_UPDATE("tagUpdate");
+
+        private final String m_key;
+
+        Phase(final String _key) {
+            m_key = _key;
+        }
+    }
+
+    /**
+     * A running timer for one phase, from {@link Stats#start(Phase)}.
+     */
+    public static final class Timer {
+        private final long m_allocated;
+        private final Phase m_phase;
+        private final long m_start;
+
+        private Timer(final Phase _phase) {
+            m_phase = _phase;
+            m_allocated = getAllocatedBytes();
+            m_start = System.nanoTime();
+        }
+    }
+
+    /**
+     * The bean that measures allocation, or <tt>null</tt> if the JVM can't. Loading the management classes takes a
+     * while, so it's only done once collection is turned on.
+     */
+    private static class AllocationBeanHolder {
+        static final ThreadMXBean BEAN = getAllocationBean();
+    }
+
+    private static final LongAdder[] s_counters = newAdders(Counter.values().length);
+    private static volatile boolean s_enabled = false;
+    private static volatile long s_enabledAt = 0;
+    private static final LongAdder[] s_phaseAllocated = newAdders(Phase.values().length);
+    private static final LongAdder[] s_phaseCalls = newAdders(Phase.values().length);
+    private static final LongAdder[] s_phaseNanos = newAdders(Phase.values().length);
+
+    /**
+     * Adds to a counter.
+     */
+    public static void add(final Counter _counter, final long _n) {
+        if (s_enabled) {
+            s_counters[_counter.ordinal()].add(_n);
+        }
+    }
+
+    /**
+     * Adds time spent in a phase that was measured some other way (in a loop too tight for a {@link Timer}, say).
+     */
+    public static void addTime(final Phase _phase, final long _nanos) {
+        if (s_enabled) {
+            s_phaseNanos[_phase.ordinal()].add(_nanos);
+            s_phaseCalls[_phase.ordinal()].increment();
+        }
+    }
+
+    private static ThreadMXBean getAllocationBean() {
+        try {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        } catch (final Throwable e) {
+            // not a HotSpot-style JVM (or not allowed); allocation just isn't measured
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or 0 if that can't be measured
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = AllocationBeanHolder.BEAN;
+        return null == bean ? 0 : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static boolean isEnabled() {
+        return s_enabled;
+    }
+
+    private static LongAdder[] newAdders(final int _n) {
+        final LongAdder[] ret = new LongAdder[_n];
+        for (int i = 0; i < _n; ++i) {
+            ret[i] = new LongAdder();
+        }
+        return ret;
+    }
+
+    /**
+     * Prints the statistics as a single JSON object.
+     */
+    public static void printJson(final PrintStream _out) {
+        final StringBuilder json = new StringBuilder("{");
+        for (final Entry<String, Long> entry : snapshot().entrySet()) {
+            if (1 < json.length()) {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+        }
+        _out.println(json.append('}'));
+    }
+
+    /**
+     * Prints the statistics for people to read.
+     */
+    public static void printSummary(final PrintStream _out) {
+        final Map<String, Long> snapshot = snapshot();
+        final double elapsed = snapshot.get("elapsedNanos") / 1e9;
+        _out.println(String.format("Statistics (%.3f s elapsed):", elapsed));
+        for (final Counter counter : Counter.values()) {
+            _out.println(String.format("  %-20s %,15d", counter.m_key, snapshot.get(counter.m_key)));
+        }
+        _out.println(String.format("  %-20s %15s %12s %15s", "phase", "time (ms)", "calls", "allocated"));
+        for (final Phase phase : Phase.values()) {
+            final String prefix = "phase." + phase.m_key + ".";
+            final long allocated = snapshot.get(prefix + "allocatedBytes");
+            _out.println(String.format("  %-20s %,15.1f %,12d %15s", phase.m_key, snapshot.get(prefix + "nanos") / 1e6, snapshot.get(prefix + "calls"), null == AllocationBeanHolder.BEAN ? "n/a" : String.format("%,d", allocated)));
+        }
+        if (null != AllocationBeanHolder.BEAN) {
+            _out.println("  (allocation is counted on the thread that ran each phase; with --threads, scoring allocates elsewhere)");
+        }
+    }
+
+    /**
+     * Zeroes every counter and timer, and restarts the elapsed-time clock.
+     */
+    public static void reset() {
+        for (final LongAdder[] adders : new LongAdder[][] { s_counters, s_phaseAllocated, s_phaseCalls, s_phaseNanos }) {
+            for (final LongAdder adder : adders) {
+                adder.reset();
+            }
+        }
+        s_enabledAt = System.nanoTime();
+    }
+
+    /**
+     * Turns collection on or off. Turning it on doesn't reset what was collected before.
+     */
+    public static void setEnabled(final boolean _enabled) {
+        if (_enabled && !s_enabled) {
+            s_enabledAt = System.nanoTime();
+        }
+        s_enabled = _enabled;
+    }
+
+    /**
+     * Gets the current values of everything collected. Keys are stable: the counter names (<tt>files</tt>,
+     * <tt>bytesRead</tt>, ...), <tt>elapsedNanos</tt> since collection was enabled, and
+     * <tt>phase.&lt;name&gt;.nanos</tt>, <tt>.calls</tt>, and <tt>.allocatedBytes</tt> for each phase. Values are
+     * read without stopping other threads, so a snapshot taken mid-run may be slightly inconsistent.
+     */
+    public static Map<String, Long> snapshot() {
+        final Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        ret.put("elapsedNanos", 0 == s_enabledAt ? 0 : System.nanoTime() - s_enabledAt);
+        for (final Counter counter : Counter.values()) {
+            ret.put(counter.m_key, s_counters[counter.ordinal()].sum());
+        }
+        for (final Phase phase : Phase.values()) {
+            final String prefix = "phase." + phase.m_key + ".";
+            ret.put(prefix + "nanos", s_phaseNanos[phase.ordinal()].sum());
+            ret.put(prefix + "calls", s_phaseCalls[phase.ordinal()].sum());
+            ret.put(prefix + "allocatedBytes", s_phaseAllocated[phase.ordinal()].sum());
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /**
+     * Starts timing a phase.
+     *
+     * @return the timer to pass to {@link #stop(Timer)}, or <tt>null</tt> if collection is off
+     */
+    public static Timer start(final Phase _phase) {
+        return s_enabled ? new Timer(_phase) : null;
+    }
+
+    /**
+     * Stops a timer, adding its time (and, where measurable, the bytes the thread allocated) to its phase.
+     *
+     * @param _timer
+     *            the timer from {@link #start(Phase)}; <tt>null</tt> is ignored
+     */
+    public static void stop(final Timer _timer) {
+        if (null == _timer) {
+            return;
+        }
+        final int phase = _timer.m_phase.ordinal();
+        s_phaseNanos[phase].add(System.nanoTime() - _timer.m_start);
+        s_phaseCalls[phase].increment();
+        if (null != AllocationBeanHolder.BEAN) {
+            s_phaseAllocated[phase].add(getAllocatedBytes() - _timer.m_allocated);
+        }
+    }
+
+    private Stats() {
+    }
+}
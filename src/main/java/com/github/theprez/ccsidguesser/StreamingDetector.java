@@ -0,0 +1,229 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.github.theprez.ccsidguesser.CcsidConfidenceScorer.Confidence;
+
+/**
+ * A push-style detector for data that arrives a chunk at a time (pipes, sockets, and the like). Each candidate keeps a
+ * running tally, so the data never has to be held in memory, and the current ranking can be asked for at any time.
+ * <p>
+ * Single-byte candidates share one running byte histogram. Multi-byte candidates each keep their own decoder, and
+ * carry any sequence split across a chunk boundary over to the next chunk.
+ */
+public class StreamingDetector {
+
+    private static class MultiByteTally {
+        private final ByteBuffer m_carry = ByteBuffer.allocate(CARRY_BYTES);
+        private final CharsetDecoder m_decoder;
+        private boolean m_failed = false;
+        private long m_numChars = 0;
+        /** Chars decoded so far, counted by weight class */
+        private final long[] m_tally;
+
+        MultiByteTally(final CharsetDecoder _decoder, final CharacterWeights _weights) {
+            m_decoder = _decoder;
+            m_tally = _weights.newTally();
+        }
+
+        private void fail() {
+            m_failed = true;
+            Stats.add(Stats.Counter.DECODE_FAILURES, 1);
+        }
+
+        private void decode(final ByteBuffer _in, final boolean _endOfInput, final CharBuffer _out, final CharacterWeights _weights) {
+            CoderResult result;
+            do {
+                result = m_decoder.decode(_in, _out, _endOfInput);
+                if (result.isError()) {
+                    // the output buffer is shared between candidates, so don't leave anything behind in it
+                    _out.clear();
+                    fail();
+                    return;
+                }
+                score(_out, _weights);
+            } while (result.isOverflow());
+        }
+
+        void finish(final CharBuffer _out, final CharacterWeights _weights) {
+            if (m_failed) {
+                return;
+            }
+            m_carry.flip();
+            decode(m_carry, true, _out, _weights);
+            m_carry.clear();
+            if (m_failed) {
+                return;
+            }
+            CoderResult result;
+            do {
+                result = m_decoder.flush(_out);
+                score(_out, _weights);
+            } while (result.isOverflow());
+        }
+
+        private void score(final CharBuffer _out, final CharacterWeights _weights) {
+            final char[] chars = _out.array();
+            final int len = _out.position();
+            for (int i = 0; i < len; ++i) {
+                m_tally[_weights.getWeightClass(chars[i])]++;
+            }
+            m_numChars += len;
+            _out.clear();
+        }
+
+        void update(final ByteBuffer _chunk, final CharBuffer _out, final CharacterWeights _weights) {
+            if (m_failed) {
+                return;
+            }
+            final ByteBuffer in = _chunk.duplicate();
+            // Finish off any sequence left over from the previous chunk, feeding it one byte at a time
+            while (0 < m_carry.position() && in.hasRemaining()) {
+                m_carry.put(in.get());
+                m_carry.flip();
+                decode(m_carry, false, _out, _weights);
+                m_carry.compact();
+                if (m_failed) {
+                    return;
+                }
+                if (!m_carry.hasRemaining()) {
+                    // no decoder needs this many bytes for one character
+                    fail();
+                    return;
+                }
+            }
+            decode(in, false, _out, _weights);
+            if (in.remaining() > m_carry.remaining()) {
+                fail();
+                return;
+            }
+            m_carry.put(in);
+        }
+    }
+
+    private static final int CARRY_BYTES = 16;
+
+    private final CharBuffer m_buf = CharBuffer.allocate(DecoderPool.CHUNK_CHARS);
+    private final List<String> m_candidates = new ArrayList<String>();
+    private boolean m_finished = false;
+    private final long[] m_histogram = new long[256];
+    private final List<MultiByteTally> m_multiByte = new ArrayList<MultiByteTally>();
+    private final double m_multiplier;
+    /** For each candidate, either its {@link SingleByteTable} or its {@link MultiByteTally} */
+    private final List<Object> m_tallies = new ArrayList<Object>();
+    private long m_totalBytes = 0;
+    private final CharacterWeights m_weights;
+
+    /**
+     * @param _candidates
+     *            the candidate charsets, in order of preference
+     * @param _multiplier
+     *            multiplier applied to every candidate's confidence
+     * @param _weights
+     *            the character weight profile to score with
+     */
+    public StreamingDetector(final Collection<String> _candidates, final double _multiplier, final CharacterWeights _weights) {
+        m_multiplier = _multiplier;
+        m_weights = _weights;
+        for (final String charset : _candidates) {
+            final SingleByteTable table = SingleByteTable.forCharset(charset);
+            if (null != table) {
+                m_candidates.add(charset);
+                m_tallies.add(table);
+                continue;
+            }
+            final Charset cs = DecoderPool.getCharset(charset);
+            if (null == cs) {
+                continue;
+            }
+            try {
+                final CharsetDecoder decoder = cs.newDecoder();
+                decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+                final MultiByteTally tally = new MultiByteTally(decoder, _weights);
+                m_multiByte.add(tally);
+                m_candidates.add(charset);
+                m_tallies.add(tally);
+            } catch (final Exception e) {
+                // charset can't decode; not a candidate
+            }
+        }
+    }
+
+    /**
+     * Signals the end of the data. Multi-byte sequences left incomplete now count against their charsets. No more data
+     * may be added after this.
+     */
+    public void finish() {
+        if (m_finished) {
+            return;
+        }
+        m_finished = true;
+        for (final MultiByteTally tally : m_multiByte) {
+            tally.finish(m_buf, m_weights);
+        }
+    }
+
+    /**
+     * The number of bytes seen so far.
+     */
+    public long getBytesSeen() {
+        return m_totalBytes;
+    }
+
+    /**
+     * Builds a ranking of the candidates from everything seen so far.
+     */
+    public CcsidConfidenceScorer getRanking() {
+        return getRanking(new CcsidConfidenceScorer());
+    }
+
+    /**
+     * Adds the candidates, ranked from everything seen so far, to a scorer that may already hold some charsets (a
+     * structural guess, say). Those come first among any charsets they tie with.
+     *
+     * @return the scorer
+     */
+    CcsidConfidenceScorer getRanking(final CcsidConfidenceScorer _scorer) {
+        final CcsidConfidenceScorer ret = _scorer;
+        // Candidates are added in their original order, so ties rank the same way they would in a one-shot scan
+        for (int i = 0; i < m_candidates.size(); ++i) {
+            final Object tally = m_tallies.get(i);
+            final Confidence confidence;
+            if (tally instanceof SingleByteTable) {
+                final double numHits = ((SingleByteTable) tally).getHits(m_histogram, m_weights);
+                confidence = new Confidence(numHits, m_totalBytes, m_totalBytes);
+            } else {
+                final MultiByteTally mb = (MultiByteTally) tally;
+                confidence = mb.m_failed ? new Confidence(0, Math.max(1, 4 * m_totalBytes), m_totalBytes) : new Confidence(m_weights.getHits(mb.m_tally), mb.m_numChars, mb.m_numChars);
+            }
+            confidence.multiply(m_multiplier);
+            ret.addScoredCharset(m_candidates.get(i), confidence);
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the next chunk of data. The buffer's position is advanced to its limit.
+     */
+    public void update(final ByteBuffer _chunk) {
+        if (m_finished) {
+            throw new IllegalStateException("Detector has already finished");
+        }
+        for (int i = _chunk.position(); i < _chunk.limit(); ++i) {
+            m_histogram[_chunk.get(i) & 0xff]++;
+        }
+        for (final MultiByteTally tally : m_multiByte) {
+            tally.update(_chunk, m_buf, m_weights);
+        }
+        m_totalBytes += _chunk.remaining();
+        _chunk.position(_chunk.limit());
+    }
+}
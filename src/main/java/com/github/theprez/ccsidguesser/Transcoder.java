@@ -0,0 +1,334 @@
+package com.github.theprez.ccsidguesser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import com.github.theprez.ccsidguesser.CcsidGuesser.ConvertMode;
+
+/**
+ * Converts data in some charset to UTF-8. Single-byte charsets go through a 256-entry table of UTF-8 byte sequences,
+ * with no decoding at all; everything else goes through a {@link CharsetDecoder}/{@link CharsetEncoder} pair. Either
+ * way, bytes are read from and written to direct buffers.
+ * <p>
+ * A transcoder keeps state between calls (a partly-decoded character, for instance) and is not thread-safe.
+ */
+final class Transcoder {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Converts a file to UTF-8. The output is written to a temporary file in the same directory, which is then moved
+     * into place, so the target is never left half-written.
+     *
+     * @param _mode
+     *            {@link ConvertMode#INPLACE} replaces the file, {@link ConvertMode#DOTBAK} also keeps a copy of the
+     *            original with a <tt>.bak</tt> extension, and {@link ConvertMode#DOTUTF8} writes a new file with a
+     *            <tt>.utf8</tt> extension
+     * @return the file that was written
+     */
+    static File convertFile(final File _file, final ConvertMode _mode, final String _encoding) throws IOException {
+        try (FileChannel in = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            return convertFile(_file, _mode, _encoding, ByteBuffer.allocate(0), in);
+        }
+    }
+
+    /**
+     * Like {@link #convertFile(File, ConvertMode, String)}, for when the start of the file has already been read.
+     *
+     * @param _prefix
+     *            the bytes already read from the start of the file
+     * @param _rest
+     *            the file, positioned just past the prefix
+     */
+    static File convertFile(final File _file, final ConvertMode _mode, final String _encoding, final ByteBuffer _prefix, final ReadableByteChannel _rest) throws IOException {
+        return convertFile(_file, _mode, (_out) -> new Transcoder(_encoding).transcode(_prefix, _rest, _out));
+    }
+
+    /**
+     * Like {@link #convertFile(File, ConvertMode, String)}, but large files are split into chunks that are converted on
+     * several threads (see {@link ParallelTranscoder}).
+     *
+     * @param _threads
+     *            how many threads to convert on
+     * @param _maxMemory
+     *            roughly the most memory, in bytes, that chunks waiting to be written may take up
+     */
+    static File convertFile(final File _file, final ConvertMode _mode, final String _encoding, final int _threads, final long _maxMemory) throws IOException {
+        final ParallelTranscoder transcoder = new ParallelTranscoder(_encoding, _threads, _maxMemory);
+        try (FileChannel in = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            return convertFile(_file, _mode, (_out) -> transcoder.transcode(in, _out));
+        }
+    }
+
+    /**
+     * Like {@link #convertFile(File, ConvertMode, String)}, for a file whose parts are in different encodings. Each
+     * segment is converted from its own encoding.
+     *
+     * @param _segments
+     *            the segments, in order, covering the whole file
+     */
+    static File convertFile(final File _file, final ConvertMode _mode, final List<Segmenter.Segment> _segments) throws IOException {
+        try (FileChannel in = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            return convertFile(_file, _mode, (_out) -> transcodeSegments(in, _segments, _out));
+        }
+    }
+
+    /**
+     * Writes each segment of <tt>_in</tt> to <tt>_out</tt> as UTF-8, converting it from its own encoding.
+     */
+    static void transcodeSegments(final FileChannel _in, final List<Segmenter.Segment> _segments, final WritableByteChannel _out) throws IOException {
+        for (final Segmenter.Segment segment : _segments) {
+            new Transcoder(segment.getCharset()).transcode(_in, segment.getStart(), segment.getEnd(), _out);
+        }
+    }
+
+    /**
+     * Whether a file is one that converting in the given mode writes: the <tt>.utf8</tt> or <tt>.bak</tt> file, or the
+     * temporary file the output goes through. Such files shouldn't be picked up (and converted in turn) while walking
+     * the directories being converted.
+     */
+    static boolean isOutputFile(final Path _file, final ConvertMode _mode) {
+        if (ConvertMode.NONE == _mode || ConvertMode.STDOUT == _mode) {
+            return false;
+        }
+        final String name = _file.getFileName().toString();
+        if (name.startsWith(".") && name.endsWith(".tmp")) {
+            return true;
+        }
+        return (ConvertMode.DOTUTF8 == _mode && name.endsWith(".utf8")) || (ConvertMode.DOTBAK == _mode && name.endsWith(".bak"));
+    }
+
+    /**
+     * Writes the converted data out through the given conversion.
+     */
+    private interface Conversion {
+        void writeTo(FileChannel _out) throws IOException;
+    }
+
+    private static File convertFile(final File _file, final ConvertMode _mode, final Conversion _conversion) throws IOException {
+        final Path source = _file.toPath().toAbsolutePath();
+        final String name = source.getFileName().toString();
+        final Path target;
+        if (ConvertMode.DOTUTF8 == _mode) {
+            target = source.resolveSibling(name + ".utf8");
+        } else if (ConvertMode.DOTBAK == _mode || ConvertMode.INPLACE == _mode) {
+            target = source;
+        } else {
+            throw new IllegalArgumentException("unsupported conversion mode: " + _mode.name());
+        }
+        final Path temp = Files.createTempFile(source.getParent(), "." + name, ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(source));
+            } catch (final UnsupportedOperationException e) {
+                // not a POSIX file system; the temp file keeps the default permissions
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                _conversion.writeTo(out);
+            }
+            if (ConvertMode.DOTBAK == _mode) {
+                // the original keeps its data under the new name, and the converted file is moved in over the old one
+                final Path backup = source.resolveSibling(name + ".bak");
+                Files.deleteIfExists(backup);
+                try {
+                    Files.createLink(backup, source);
+                } catch (final IOException | UnsupportedOperationException e) {
+                    // no hard links here
+                    Files.copy(source, backup, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target.toFile();
+    }
+
+    private final CharBuffer m_chars;
+    private final CharsetDecoder m_decoder;
+    private final CharsetEncoder m_encoder;
+    private final ByteBuffer m_out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[][] m_table;
+
+    /**
+     * @param _encoding
+     *            the Java name of the charset the data is in
+     * @throws IOException
+     *             if the charset isn't supported
+     */
+    Transcoder(final String _encoding) throws IOException {
+        final SingleByteTable table = SingleByteTable.forCharset(_encoding);
+        if (null != table) {
+            m_table = table.getUtf8Table();
+            m_decoder = null;
+            m_encoder = null;
+            m_chars = null;
+            return;
+        }
+        final Charset cs = DecoderPool.getCharset(_encoding);
+        if (null == cs) {
+            throw new IOException("Unsupported encoding: " + _encoding);
+        }
+        m_table = null;
+        m_decoder = cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        m_encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        m_chars = CharBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private void drain(final WritableByteChannel _out) throws IOException {
+        m_out.flip();
+        while (m_out.hasRemaining()) {
+            _out.write(m_out);
+        }
+        m_out.clear();
+    }
+
+    private void encode(final boolean _endOfInput, final WritableByteChannel _out) throws IOException {
+        m_chars.flip();
+        while (m_encoder.encode(m_chars, m_out, _endOfInput).isOverflow()) {
+            drain(_out);
+        }
+        m_chars.compact();
+        if (_endOfInput) {
+            while (m_encoder.flush(m_out).isOverflow()) {
+                drain(_out);
+            }
+        }
+    }
+
+    /**
+     * Converts the rest of the data and writes out everything that's pending. A character left incomplete at the end
+     * of the data comes out as U+FFFD. The transcoder can't be used after this.
+     *
+     * @param _in
+     *            the last of the data (may be empty)
+     */
+    void finish(final ByteBuffer _in, final WritableByteChannel _out) throws IOException {
+        if (null == m_table) {
+            while (m_decoder.decode(_in, m_chars, true).isOverflow()) {
+                encode(false, _out);
+            }
+            while (m_decoder.flush(m_chars).isOverflow()) {
+                encode(false, _out);
+            }
+            encode(true, _out);
+        } else {
+            update(_in, _out);
+        }
+        drain(_out);
+    }
+
+    /**
+     * Makes a transcoder ready for new data, discarding whatever state it had. A transcoder can be used again after
+     * {@link #finish(ByteBuffer, WritableByteChannel)} once it's been reset.
+     */
+    void reset() {
+        if (null == m_table) {
+            m_decoder.reset();
+            m_encoder.reset();
+            m_chars.clear();
+        }
+        m_out.clear();
+    }
+
+    /**
+     * Reads everything from <tt>_in</tt> and writes it to <tt>_out</tt> as UTF-8.
+     */
+    void transcode(final ReadableByteChannel _in, final WritableByteChannel _out) throws IOException {
+        transcode(ByteBuffer.allocate(0), _in, _out);
+    }
+
+    /**
+     * Writes <tt>_prefix</tt>, then everything from <tt>_in</tt>, to <tt>_out</tt> as UTF-8.
+     */
+    void transcode(final ByteBuffer _prefix, final ReadableByteChannel _in, final WritableByteChannel _out) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = _prefix.remaining();
+        update(_prefix, _out);
+        // whatever's left of the prefix is the start of a character that continues in the channel
+        buf.put(_prefix);
+        int read;
+        while (-1 != (read = _in.read(buf))) {
+            total += read;
+            buf.flip();
+            update(buf, _out);
+            buf.compact();
+        }
+        buf.flip();
+        finish(buf, _out);
+        Stats.add(Stats.Counter.BYTES_CONVERTED, total);
+    }
+
+    /**
+     * Writes the bytes of <tt>_in</tt> from offset <tt>_start</tt> up to (not including) offset <tt>_end</tt> to
+     * <tt>_out</tt> as UTF-8. The channel's position isn't used or changed.
+     */
+    void transcode(final FileChannel _in, final long _start, final long _end, final WritableByteChannel _out) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(BUFFER_SIZE, _end - _start)));
+        long pos = _start;
+        while (pos < _end) {
+            buf.limit((int) Math.min(buf.capacity(), buf.position() + _end - pos));
+            final int read = _in.read(buf, pos);
+            if (-1 == read) {
+                break;
+            }
+            pos += read;
+            buf.flip();
+            update(buf, _out);
+            buf.compact();
+        }
+        buf.flip();
+        finish(buf, _out);
+        Stats.add(Stats.Counter.BYTES_CONVERTED, pos - _start);
+    }
+
+    /**
+     * Converts as much of the data as possible. Output may be held back until the buffer fills. If the data ends in the
+     * middle of a character, those bytes are left in <tt>_in</tt>, to be passed in again (after compacting) along with
+     * the next data.
+     */
+    void update(final ByteBuffer _in, final WritableByteChannel _out) throws IOException {
+        if (null == m_table) {
+            while (m_decoder.decode(_in, m_chars, false).isOverflow()) {
+                encode(false, _out);
+            }
+            encode(false, _out);
+            return;
+        }
+        final byte[][] table = m_table;
+        final ByteBuffer out = m_out;
+        final int limit = _in.limit();
+        for (int i = _in.position(); i < limit; ++i) {
+            if (out.remaining() < 3) {
+                drain(_out);
+            }
+            final byte[] seq = table[_in.get(i) & 0xff];
+            if (1 == seq.length) {
+                out.put(seq[0]);
+            } else {
+                out.put(seq);
+            }
+        }
+        _in.position(limit);
+    }
+}
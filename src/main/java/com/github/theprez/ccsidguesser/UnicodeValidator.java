@@ -0,0 +1,174 @@
+package com.github.theprez.ccsidguesser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Structural validators for the Unicode encodings. Unlike the scorer, these don't guess: they either prove that a
+ * sample is clean ASCII/UTF-8 or clearly UTF-16/UTF-32 (by the pattern of zero bytes), or they say nothing at all.
+ */
+final class UnicodeValidator {
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** Samples shorter than this are too small to judge by their zero-byte pattern */
+    static final int MIN_WIDE_SAMPLE = 16;
+
+    /**
+     * Decides whether the sample is structurally (and unambiguously) one of the Unicode encodings.
+     *
+     * @return the charset name (<tt>UTF8</tt>, <tt>UTF-16BE</tt>, <tt>UTF-16LE</tt>, <tt>UTF-32BE</tt>, or
+     *         <tt>UTF-32LE</tt>), or <tt>null</tt> if the sample isn't decisively any of them
+     */
+    static String detect(final Sample _sample) {
+        final byte[] data = _sample.getData();
+        final int len = _sample.getLength();
+        if (MIN_WIDE_SAMPLE <= len) {
+            final String wide = detectWide(data, len);
+            if (null != wide) {
+                return wide;
+            }
+        }
+        // Zero bytes are valid ASCII/UTF-8, but text with lots of them is almost certainly something else
+        if (hasZeroBytes(data, len)) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int region = 0; region < _sample.getRegionCount(); ++region) {
+            int start = _sample.getRegionStart(region);
+            final int end = _sample.getRegionEnd(region);
+            if (0 < region) {
+                // the region may start in the middle of a character
+                for (int i = 0; i < 3 && start < end && 0x80 == (data[start] & 0xC0); ++i) {
+                    start++;
+                }
+            }
+            final boolean endsAtEof = region == _sample.getRegionCount() - 1 && _sample.endsAtEof();
+            if (!isValidUtf8(buf, start, end, !endsAtEof)) {
+                return null;
+            }
+        }
+        return "UTF8";
+    }
+
+    static String detectWide(final byte[] _data, final int _len) {
+        // UTF-32 first, since UTF-32 text also has the zero bytes that UTF-16 text does
+        final int units32 = _len / 4;
+        int beHigh = 0, leHigh = 0, beLowNonZero = 0, leLowNonZero = 0;
+        for (int i = 0; i < units32 * 4; i += 4) {
+            // the top byte of a code point is always zero, and the next one is at most 0x10
+            if (0 == _data[i] && 0x10 >= (_data[i + 1] & 0xff)) {
+                beHigh++;
+            }
+            if (0 == _data[i + 3] && 0x10 >= (_data[i + 2] & 0xff)) {
+                leHigh++;
+            }
+            if (0 != _data[i + 3]) {
+                beLowNonZero++;
+            }
+            if (0 != _data[i]) {
+                leLowNonZero++;
+            }
+        }
+        if (beHigh == units32 && beLowNonZero * 2 >= units32) {
+            return "UTF-32BE";
+        }
+        if (leHigh == units32 && leLowNonZero * 2 >= units32) {
+            return "UTF-32LE";
+        }
+
+        final int units16 = _len / 2;
+        int evenZero = 0, oddZero = 0;
+        for (int i = 0; i < units16 * 2; i += 2) {
+            if (0 == _data[i]) {
+                evenZero++;
+            }
+            if (0 == _data[i + 1]) {
+                oddZero++;
+            }
+        }
+        // Mostly-Latin text in UTF-16 has a zero in (nearly) every other byte, and (nearly) never in the others
+        if (evenZero * 10 >= units16 * 9 && oddZero * 20 <= units16) {
+            return "UTF-16BE";
+        }
+        if (oddZero * 10 >= units16 * 9 && evenZero * 20 <= units16) {
+            return "UTF-16LE";
+        }
+        return null;
+    }
+
+    private static boolean hasZeroBytes(final byte[] _data, final int _len) {
+        for (int i = 0; i < _len; ++i) {
+            if (0 == _data[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds how many bytes, starting at <tt>_start</tt>, are 7-bit ASCII. Whole 8-byte words are checked at once.
+     */
+    private static int asciiPrefixLength(final ByteBuffer _buf, final int _start, final int _end) {
+        int i = _start;
+        while (i + 8 <= _end && 0 == (_buf.getLong(i) & HIGH_BITS)) {
+            i += 8;
+        }
+        while (i < _end && 0 <= _buf.get(i)) {
+            ++i;
+        }
+        return i - _start;
+    }
+
+    /**
+     * Validates the given bytes as UTF-8 (rejecting overlong forms, surrogates, and code points past U+10FFFF). Runs of
+     * ASCII are skipped 8 bytes at a time.
+     *
+     * @param _truncated
+     *            whether a multi-byte sequence cut off at the very end is acceptable
+     */
+    static boolean isValidUtf8(final ByteBuffer _buf, final int _start, final int _end, final boolean _truncated) {
+        int i = _start;
+        while (i < _end) {
+            i += asciiPrefixLength(_buf, i, _end);
+            if (i >= _end) {
+                return true;
+            }
+            final int lead = _buf.get(i) & 0xff;
+            final int needed;
+            int min = 0x80, max = 0xBF; // valid range for the first continuation byte
+            if (0xC2 <= lead && lead <= 0xDF) {
+                needed = 1;
+            } else if (0xE0 <= lead && lead <= 0xEF) {
+                needed = 2;
+                if (0xE0 == lead) {
+                    min = 0xA0; // overlong
+                } else if (0xED == lead) {
+                    max = 0x9F; // surrogates
+                }
+            } else if (0xF0 <= lead && lead <= 0xF4) {
+                needed = 3;
+                if (0xF0 == lead) {
+                    min = 0x90; // overlong
+                } else if (0xF4 == lead) {
+                    max = 0x8F; // past U+10FFFF
+                }
+            } else {
+                return false;
+            }
+            for (int j = 1; j <= needed; ++j) {
+                if (i + j >= _end) {
+                    return _truncated;
+                }
+                final int cont = _buf.get(i + j) & 0xff;
+                if (cont < (1 == j ? min : 0x80) || cont > (1 == j ? max : 0xBF)) {
+                    return false;
+                }
+            }
+            i += 1 + needed;
+        }
+        return true;
+    }
+
+    private UnicodeValidator() {
+    }
+}